@@ -0,0 +1,71 @@
+package com.eekboom.copy_as_html;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Byte arrays reused across exports, so repeated copies don't allocate and discard a buffer the size of their output each time.
+ * Arrays come in size classes of powers of two. Released arrays are only kept up to {@link #MAX_RETAINED_SIZE} bytes in all,
+ * larger ones than {@link #MAX_POOLED_SIZE} are never kept.
+ */
+class BufferPool {
+    static final int MIN_POOLED_SIZE = 4 * 1024;
+    static final int MAX_POOLED_SIZE = 4 * 1024 * 1024;
+    static final int MAX_RETAINED_SIZE = 8 * 1024 * 1024;
+
+    private static final int MIN_SHIFT = 12;
+    private static final List[] _freeBySizeClass = new List[23 - MIN_SHIFT];
+    private static int _retainedSize;
+
+    static {
+        for (int i = 0; i < _freeBySizeClass.length; i++) {
+            _freeBySizeClass[i] = new ArrayList();
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * @return an array of at least the size, with arbitrary content, to be released when it is not used any more
+     */
+    static byte[] rent(int minSize) {
+        if (minSize > MAX_POOLED_SIZE) {
+            return new byte[minSize];
+        }
+        int sizeClass = getSizeClass(minSize);
+        synchronized (BufferPool.class) {
+            List free = _freeBySizeClass[sizeClass];
+            if (!free.isEmpty()) {
+                byte[] bytes = (byte[]) free.remove(free.size() - 1);
+                _retainedSize -= bytes.length;
+                return bytes;
+            }
+        }
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    /**
+     * Keeps the array for reuse, unless the pool is full. The array must not be used any more.
+     */
+    static void release(byte[] bytes) {
+        int size = bytes.length;
+        if (size < MIN_POOLED_SIZE || size > MAX_POOLED_SIZE || (size & (size - 1)) != 0) {
+            return;
+        }
+        synchronized (BufferPool.class) {
+            if (_retainedSize + size <= MAX_RETAINED_SIZE) {
+                _freeBySizeClass[getSizeClass(size)].add(bytes);
+                _retainedSize += size;
+            }
+        }
+    }
+
+    private static int getSizeClass(int size) {
+        int sizeClass = 0;
+        while ((1 << (sizeClass + MIN_SHIFT)) < size) {
+            ++sizeClass;
+        }
+        return sizeClass;
+    }
+}
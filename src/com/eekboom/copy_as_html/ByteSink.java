@@ -0,0 +1,204 @@
+package com.eekboom.copy_as_html;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes everything appended as UTF-8 straight into a byte array, for outputs that end up as bytes anyway. Either grows to hold
+ * all of it, or hands the bytes over to an output stream whenever the array is full.
+ * A surrogate pair must not be split between two appends, unpaired surrogates are encoded as '?'.
+ * The array is rented from the {@link BufferPool} and needs to be released when the sink is not used any more.
+ * <p>
+ * Other sinks can capture a copy of a part of the bytes, e.g. for a cache, while the bytes still go on to the output stream. A sink
+ * that holds all bytes needs no capture, a part can be copied from it at the end.
+ */
+class ByteSink implements Appendable {
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    /**
+     * Chars are encoded in pieces of at most this size, so the array needs to grow at most by three times that
+     */
+    private static final int MAX_PIECE_LENGTH = 4 * 1024;
+
+    private final OutputStream _out;
+    private byte[] _bytes;
+    private int _size;
+    /**
+     * The sinks capturing the bytes, innermost last, and the index of the first byte each one has not got yet
+     */
+    private ByteSink[] _captures = new ByteSink[2];
+    private int[] _captureStarts = new int[2];
+    private int _captureCount;
+
+    /**
+     * A sink that grows to hold all bytes.
+     */
+    public ByteSink() {
+        this(null, INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param out receives the bytes whenever the array is full and on {@link #flush}, null to grow instead
+     */
+    public ByteSink(OutputStream out, int capacity) {
+        _out = out;
+        _bytes = BufferPool.rent(capacity);
+    }
+
+    public Appendable append(CharSequence csq) throws IOException {
+        return append(csq, 0, csq.length());
+    }
+
+    public Appendable append(CharSequence csq, int start, int end) throws IOException {
+        while (start < end) {
+            int pieceEnd = Math.min(end, start + MAX_PIECE_LENGTH);
+            if (pieceEnd < end && Character.isHighSurrogate(csq.charAt(pieceEnd - 1))) {
+                // keep the pair together
+                --pieceEnd;
+            }
+            ensureCapacity(3 * (pieceEnd - start));
+            _size = Utf8.encode(csq, start, pieceEnd, _bytes, _size);
+            start = pieceEnd;
+        }
+        return this;
+    }
+
+    public Appendable append(char c) throws IOException {
+        if (c < 0x80) {
+            ensureCapacity(1);
+            _bytes[_size++] = (byte) c;
+        }
+        else {
+            ensureCapacity(3);
+            _size = Utf8.encode(c, _bytes, _size);
+        }
+        return this;
+    }
+
+    /**
+     * Appends bytes that are already encoded, e.g. markup encoded once for all its uses.
+     */
+    public void write(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (_out != null && length > _bytes.length) {
+            // too large to be held, hand it over right away
+            flush();
+            for (int i = 0; i < _captureCount; i++) {
+                _captures[i].write(bytes, offset, length);
+            }
+            _out.write(bytes, offset, length);
+            return;
+        }
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, _bytes, _size, length);
+        _size += length;
+    }
+
+    /**
+     * @return false if the sink hands the bytes over to an output stream, true if it grows to hold all of them
+     */
+    public boolean isHoldingAll() {
+        return _out == null;
+    }
+
+    /**
+     * Copies everything appended from now on into the capture as well, until {@link #endCapture}. Captures can be nested.
+     * @param capture must grow to hold all bytes
+     */
+    public void startCapture(ByteSink capture) {
+        if (_captureCount == _captures.length) {
+            ByteSink[] captures = new ByteSink[_captureCount * 2];
+            System.arraycopy(_captures, 0, captures, 0, _captureCount);
+            _captures = captures;
+            int[] captureStarts = new int[_captureCount * 2];
+            System.arraycopy(_captureStarts, 0, captureStarts, 0, _captureCount);
+            _captureStarts = captureStarts;
+        }
+        _captures[_captureCount] = capture;
+        _captureStarts[_captureCount] = _size;
+        ++_captureCount;
+    }
+
+    /**
+     * Ends the capture started last, it holds all bytes appended since then.
+     */
+    public void endCapture() throws IOException {
+        --_captureCount;
+        int start = _captureStarts[_captureCount];
+        _captures[_captureCount].write(_bytes, start, _size - start);
+        _captures[_captureCount] = null;
+    }
+
+    private void ensureCapacity(int count) throws IOException {
+        if (_size + count <= _bytes.length) {
+            return;
+        }
+        if (_out != null) {
+            flush();
+            if (count <= _bytes.length) {
+                return;
+            }
+        }
+        byte[] bytes = BufferPool.rent(Math.max(_bytes.length * 2, _size + count));
+        System.arraycopy(_bytes, 0, bytes, 0, _size);
+        BufferPool.release(_bytes);
+        _bytes = bytes;
+    }
+
+    /**
+     * Hands the bytes held over to the output stream, which is not flushed itself.
+     */
+    public void flush() throws IOException {
+        for (int i = 0; i < _captureCount; i++) {
+            _captures[i].write(_bytes, _captureStarts[i], _size - _captureStarts[i]);
+            _captureStarts[i] = 0;
+        }
+        _out.write(_bytes, 0, _size);
+        _size = 0;
+    }
+
+    /**
+     * @return the bytes held, only the first {@link #size} of them are used
+     */
+    byte[] getBytes() {
+        return _bytes;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * @return a copy of the bytes held; the sink keeps its array, {@link #release} must still be called
+     */
+    public byte[] toByteArray() {
+        return toByteArray(0);
+    }
+
+    /**
+     * @return a copy of the bytes held from the index on; the sink keeps its array, {@link #release} must still be called
+     */
+    public byte[] toByteArray(int start) {
+        byte[] bytes = new byte[_size - start];
+        System.arraycopy(_bytes, start, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Drops the bytes held, so the sink can be filled again.
+     */
+    public void clear() {
+        _size = 0;
+    }
+
+    /**
+     * Returns the array to the pool, the sink can't be used any more.
+     */
+    public void release() {
+        BufferPool.release(_bytes);
+        _bytes = null;
+        _size = 0;
+    }
+}
@@ -0,0 +1,79 @@
+package com.eekboom.copy_as_html;
+
+import java.io.IOException;
+
+/**
+ * Surrounds the html with this envelope, ready for windows clipboard (jdk support can be made better)
+ * <pre>
+ * Version:0.9
+ * StartHTML:00000000000
+ * EndHTML:00000000000
+ * StartFragment:00000000000
+ * EndFragment:00000000000
+ * &lt;!--StartFragment--&gt;
+ * ...
+ * &lt;!--EndFragment--&gt;
+ * </pre>
+ * In Windows the html needs to be utf-8 encoded, and the offsets count bytes. The envelope and the html are encoded into one
+ * sink, the offset fields are reserved with a fixed width and filled in afterwards.
+ */
+class CfHtmlEncoder {
+    private static final String LINE_SEPARATOR = "\r\n";
+    private static final String EMPTY_OFFSET = "00000000000";
+    private static final String HEADER = "Version:0.9" + LINE_SEPARATOR +
+                                         "StartHTML:" + EMPTY_OFFSET + LINE_SEPARATOR +
+                                         "EndHTML:" + EMPTY_OFFSET + LINE_SEPARATOR +
+                                         "StartFragment:" + EMPTY_OFFSET + LINE_SEPARATOR +
+                                         "EndFragment:" + EMPTY_OFFSET + LINE_SEPARATOR;
+    private static final String START_FRAGMENT = "<!--StartFragment-->";
+    private static final String END_FRAGMENT = "<!--EndFragment-->" + LINE_SEPARATOR + "\0";
+
+    private static final int START_HTML_FIELD = getFieldOffset("StartHTML");
+    private static final int END_HTML_FIELD = getFieldOffset("EndHTML");
+    private static final int START_FRAGMENT_FIELD = getFieldOffset("StartFragment");
+    private static final int END_FRAGMENT_FIELD = getFieldOffset("EndFragment");
+
+    private CfHtmlEncoder() {
+    }
+
+    private static int getFieldOffset(String name) {
+        return HEADER.indexOf(name + ":") + name.length() + 1;
+    }
+
+    /**
+     * @return a sink holding the start of the envelope, the html is to be appended to it
+     */
+    public static ByteSink createSink() throws IOException {
+        ByteSink sink = new ByteSink();
+        sink.append(HEADER);
+        sink.append(START_FRAGMENT);
+        return sink;
+    }
+
+    /**
+     * Ends the envelope after the html and fills in the offsets.
+     * @return the html in the envelope, encoded as utf-8
+     */
+    public static byte[] finish(ByteSink sink) throws IOException {
+        sink.append(END_FRAGMENT);
+
+        byte[] bytes = sink.getBytes();
+        int headerLength = HEADER.length();
+        int htmlLength = sink.size() - headerLength;
+        putOffset(bytes, START_HTML_FIELD, headerLength - 1);
+        putOffset(bytes, END_HTML_FIELD, headerLength + htmlLength - 1);
+        putOffset(bytes, START_FRAGMENT_FIELD, headerLength - 1);
+        putOffset(bytes, END_FRAGMENT_FIELD, headerLength + htmlLength - 1);
+        return sink.toByteArray();
+    }
+
+    /**
+     * Writes the value '0' padded into the reserved field, an int always fits.
+     */
+    private static void putOffset(byte[] bytes, int fieldOffset, int value) {
+        for (int i = fieldOffset + EMPTY_OFFSET.length() - 1; i >= fieldOffset; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.eekboom.copy_as_html;
 
 import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.ClipboardOwner;
 import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.UnsupportedFlavorException;
@@ -8,6 +9,9 @@ import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Field;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 
 public class ClipboardHelper {
@@ -15,13 +19,6 @@ public class ClipboardHelper {
     public static final int TYPE_HTML = 2;
     public static final int TYPE_HTML_AND_PLAIN = 3;
 
-    private static final String WINDOWS_LINE_SEPARATOR = "\r\n";
-    private static final String WINDOWS_HTML_HEADER = "Version:0.9" + WINDOWS_LINE_SEPARATOR +
-                                                      "StartHTML:00000000000" + WINDOWS_LINE_SEPARATOR +
-                                                      "EndHTML:00000000000" + WINDOWS_LINE_SEPARATOR +
-                                                      "StartFragment:00000000000" + WINDOWS_LINE_SEPARATOR +
-                                                      "EndFragment:00000000000" + WINDOWS_LINE_SEPARATOR;
-
     private static Method _wClipboardPublishMethod;
     private static Class _wClipboardClass;
     private static Method _wClipboardOpenClipboardMethod;
@@ -57,12 +54,53 @@ public class ClipboardHelper {
         }
     }
 
+    /**
+     * Renders the flavors of a copy, only called when a paste target asks for them.
+     */
+    public interface Content {
+        /**
+         * Streams the HTML as UTF-8, so it needs not be resident as a whole.
+         */
+        void writeHtml(OutputStream out) throws IOException;
+
+        /**
+         * @return the text without any markup
+         */
+        String getPlainText() throws IOException;
+    }
+
+    /**
+     * Publishes the content lazily: each flavor is only rendered when a paste target asks for it.
+     * @param type one of TYPE_HTML_AND_PLAIN, TYPE_HTML or TYPE_PLAIN
+     */
+    public static void publish(Clipboard clipboard, int type, Content content) {
+        publish(clipboard, new HtmlTransferable(type, content));
+    }
+
+    /**
+     * Publishes a transferable, e.g. one that has been rendered up front, see {@link HtmlTransferable#render}.
+     */
+    public static void publish(Clipboard clipboard, HtmlTransferable transferable) {
+        clipboard.setContents(transferable, transferable);
+    }
+
+    /**
+     * @return true if the clipboard needs the rendered text up front, see {@link #publishRendered}
+     */
+    public static boolean isPublishedRendered(Clipboard clipboard) {
+        return _wClipboardClass != null && _wClipboardClass.isAssignableFrom(clipboard.getClass());
+    }
+
     /**
      * It's surprisingly difficult to copy HTML to the clipboard (on Windows), see http://www.peterbuettner.de.
+     * There the native formats are set directly, which requires rendering them up front.
      * @param type one of TYPE_HTML_AND_PLAIN, TYPE_HTML or TYPE_PLAIN
+     * @param cfHtml the HTML in the envelope of {@link CfHtmlEncoder}, for TYPE_HTML_AND_PLAIN and TYPE_HTML
+     * @param text the text without markup for TYPE_HTML_AND_PLAIN, the HTML source for TYPE_PLAIN
+     * @param content is published lazily instead if the native formats can't be set
      */
-    public static void publish(Clipboard clipboard, int type, String text) {
-        if(_wClipboardClass != null && _wClipboardClass.isAssignableFrom(clipboard.getClass())) {
+    public static void publishRendered(Clipboard clipboard, int type, byte[] cfHtml, String text, Content content) {
+        if(isPublishedRendered(clipboard)) {
             try {
                 _wClipboardOpenClipboardMethod.invoke(clipboard, new Object[]{clipboard});
                 try {
@@ -74,10 +112,7 @@ public class ClipboardHelper {
                             }
                             // fall through
                         case TYPE_HTML:
-                            {
-                                byte[] htmlData = convertToWindowsHtmlClipboardFormat(text);
-                                setData(clipboard, WINDOWS_CF_HTML, htmlData);
-                            }
+                            setData(clipboard, WINDOWS_CF_HTML, cfHtml);
                             break;
                         case TYPE_PLAIN:
                             {
@@ -101,7 +136,7 @@ public class ClipboardHelper {
             catch(InvocationTargetException e) {
             }
         }
-        clipboard.setContents(new HtmlTransferable(type, text), null);
+        publish(clipboard, type, content);
     }
 
     private static void setData(Clipboard clipboard, long format, byte[] data) throws IllegalAccessException, InvocationTargetException {
@@ -116,98 +151,47 @@ public class ClipboardHelper {
     }
 
     /**
-     * surrounds the html with this envelope, ready for windows clipboard (jdk support can be made better)
-     * <pre>
-     * Version:0.9
-     * StartHTML:00000000000
-     * EndHTML:00000000000
-     * StartFragment:00000000000
-     * EndFragment:00000000000
-     * &lt;!--StartFragment--&gt;
-     * ...
-     * &lt;!-- EndFragment-- &gt;
-     * </pre>
-     * We have to return a byte array 'cause in Windows the html needs to be utf-8
-     * encoded. And because we have to calculate char-offsets, we encode it here.
-     *
-     * @param html
-     * @return byte[]
+     * Renders each flavor when it is asked for the first time and keeps it for further pastes.
+     * With TYPE_PLAIN the plain text flavor carries the HTML source, with TYPE_HTML_AND_PLAIN it carries the text without markup.
+     * The HTML is rendered once into a spool, which backs the stream flavor directly. Only the string flavors read it back into
+     * memory as a whole.
+     * The content is dropped as soon as every flavor has been rendered from it, a transferable may stay on the clipboard for long.
      */
-    private static byte[] convertToWindowsHtmlClipboardFormat(String html) throws UnsupportedEncodingException {
-        html = "<!--StartFragment-->" + html + "<!--EndFragment-->\r\n\0";
-
-        byte[] bHtml = html.getBytes("UTF-8");// encode first 'cause it may grow
-
-        int headerLen = WINDOWS_HTML_HEADER.length();
-        int htmlLen = bHtml.length;
-
-        StringBuffer buf = new StringBuffer(WINDOWS_HTML_HEADER);
-        setValue(buf, "StartHTML", headerLen - 1);
-        setValue(buf, "EndHTML", headerLen + htmlLen - 1);
-        setValue(buf, "StartFragment", headerLen - 1);
-        setValue(buf, "EndFragment", headerLen + htmlLen - 1);
-        byte[] bHeader = buf.toString().getBytes("UTF-8");// should stay the same (no nonASCII chars in header)
-
-        byte result[] = new byte[headerLen + htmlLen];
-        System.arraycopy(bHeader, 0, result, 0, bHeader.length);
-        System.arraycopy(bHtml, 0, result, bHeader.length, bHtml.length);
-
-        return result;
-    }
-
-    /**
-         * Replaces name+":00000000000" with name+":xxxxxxxxxxx" where xxx... is the '0' padded value.
-         * Value can't be to long, since maxint can be displayed with 11 digits. If value is below zero
-         * there is enough place (10 for the digits 1 for sign).<br>
-         * If the search is not found nothing is done.
-         *
-         * @param src
-         * @param name
-         * @param value
-         */
-    private static void setValue(StringBuffer src, String name, int value) {
-        String search = name + ":00000000000";
-        int pos = src.indexOf(search);
-        if(pos == -1) {
-            return;// not found, do nothing
-        }
-
-        boolean belowZero = value < 0;
-        if(belowZero) {
-            value = -value;
-        }
-
-        src.replace(pos + search.length() - (value + "").length(), pos + search.length(), value + "");
-        if(belowZero) {
-            src.setCharAt(pos + name.length() + 1, '-'); // +1 'cause of ':' in "SearchMe:"
-        }
-    }
-
-    public static class HtmlTransferable implements Transferable {
+    public static class HtmlTransferable implements Transferable, ClipboardOwner {
         private static DataFlavor HTML_DATA_FLAVOR;
+        private static DataFlavor HTML_STREAM_DATA_FLAVOR;
         private DataFlavor[] _dataFlavors;
-        private final String _text;
+        private final int _type;
+        /**
+         * Null once every flavor has been rendered or the transferable has been disposed
+         */
+        private Content _content;
+        private Spool _htmlSpool;
+        private String _html;
+        private String _plainText;
 
         static {
             try {
                 HTML_DATA_FLAVOR = new DataFlavor("text/html;charset=UTF-8;class=java.lang.String");
+                HTML_STREAM_DATA_FLAVOR = new DataFlavor("text/html;charset=UTF-8;class=java.io.InputStream");
             }
             catch(ClassNotFoundException e) {
                 throw new RuntimeException("Cannot create data flavor for mime type text/html");
             }
         }
 
-        public HtmlTransferable(int type, String text) {
-            _text = text;
+        public HtmlTransferable(int type, Content content) {
+            _type = type;
+            _content = content;
             switch(type) {
                 case TYPE_PLAIN:
                     _dataFlavors = new DataFlavor[]{DataFlavor.stringFlavor};
                     break;
                 case TYPE_HTML:
-                    _dataFlavors = new DataFlavor[]{HTML_DATA_FLAVOR};
+                    _dataFlavors = new DataFlavor[]{HTML_STREAM_DATA_FLAVOR, HTML_DATA_FLAVOR};
                     break;
                 case TYPE_HTML_AND_PLAIN:
-                    _dataFlavors = new DataFlavor[]{HTML_DATA_FLAVOR, DataFlavor.stringFlavor};
+                    _dataFlavors = new DataFlavor[]{HTML_STREAM_DATA_FLAVOR, HTML_DATA_FLAVOR, DataFlavor.stringFlavor};
                     break;
                 default:
                     throw new IllegalArgumentException();
@@ -227,8 +211,110 @@ public class ClipboardHelper {
             return false;
         }
 
-        public Object getTransferData(DataFlavor flavor) throws UnsupportedFlavorException, IOException {
-            return _text;
+        public synchronized Object getTransferData(DataFlavor flavor) throws UnsupportedFlavorException, IOException {
+            if(!isDataFlavorSupported(flavor)) {
+                throw new UnsupportedFlavorException(flavor);
+            }
+            if(flavor.equals(HTML_STREAM_DATA_FLAVOR)) {
+                return getHtmlSpool().openInputStream();
+            }
+            if(_type == TYPE_PLAIN || flavor.equals(HTML_DATA_FLAVOR)) {
+                if(_html == null) {
+                    _html = readString(getHtmlSpool());
+                }
+                return _html;
+            }
+            if(_plainText == null) {
+                _plainText = getContent().getPlainText();
+                dropRenderedContent();
+            }
+            return _plainText;
+        }
+
+        /**
+         * Renders the flavors up front, e.g. in a background task, so that no paste needs to wait for the rendering.
+         * Only the HTML string flavor is still read from the spool when asked for.
+         */
+        public synchronized void render() throws IOException {
+            Spool spool = getHtmlSpool();
+            if(_type == TYPE_PLAIN) {
+                _html = readString(spool);
+            }
+            else if(_type == TYPE_HTML_AND_PLAIN && _plainText == null) {
+                _plainText = getContent().getPlainText();
+            }
+            _content = null;
+        }
+
+        /**
+         * The HTML string flavor is read from the spool, so only the text without markup needs the content besides the spool.
+         */
+        private void dropRenderedContent() {
+            if(_htmlSpool != null && (_type != TYPE_HTML_AND_PLAIN || _plainText != null)) {
+                _content = null;
+            }
+        }
+
+        private Content getContent() throws IOException {
+            if(_content == null) {
+                throw new IOException("The content has been disposed");
+            }
+            return _content;
+        }
+
+        private Spool getHtmlSpool() throws IOException {
+            if(_htmlSpool == null) {
+                Spool spool = new Spool();
+                boolean isWritten = false;
+                try {
+                    getContent().writeHtml(spool);
+                    spool.close();
+                    isWritten = true;
+                }
+                finally {
+                    if(!isWritten) {
+                        // removes the temporary file
+                        spool.dispose();
+                    }
+                }
+                _htmlSpool = spool;
+                dropRenderedContent();
+            }
+            return _htmlSpool;
+        }
+
+        private static String readString(Spool spool) throws IOException {
+            Reader reader = new InputStreamReader(spool.openInputStream(), "UTF-8");
+            try {
+                StringBuilder buffer = new StringBuilder(spool.size());
+                char[] chars = new char[8192];
+                int count;
+                while((count = reader.read(chars)) >= 0) {
+                    buffer.append(chars, 0, count);
+                }
+                return buffer.toString();
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        /**
+         * No more pastes from this transferable, so remove the spool. Streams still read by paste targets are not affected.
+         */
+        public void lostOwnership(Clipboard clipboard, Transferable contents) {
+            dispose();
+        }
+
+        /**
+         * Removes the spool and drops the content, e.g. when a transferable rendered up front is not published after all.
+         */
+        public synchronized void dispose() {
+            _content = null;
+            if(_htmlSpool != null) {
+                _htmlSpool.dispose();
+                _htmlSpool = null;
+            }
         }
     }
 }
@@ -1,18 +1,23 @@
 package com.eekboom.copy_as_html;
 
+import com.intellij.openapi.editor.markup.EffectType;
+import com.intellij.openapi.editor.markup.TextAttributes;
+
 import java.awt.*;
-import java.text.Format;
+import java.util.ArrayList;
+import java.util.List;
 
 public class CodeStyle {
-    private static final Format _colorFormat = new ColorFormat();
+    private static final ColorFormat _colorFormat = new ColorFormat();
+    private static final String[] NO_DECLARATIONS = new String[0];
 
-    private Color _foregroundColor;
-    private Color _backgroundColor;
-    private boolean _bold;
-    private boolean _italic;
-    private Color _underlineColor;
-    private Color _strikeThroughColor;
-    private Color _boxColor;
+    private final Color _foregroundColor;
+    private final Color _backgroundColor;
+    private final boolean _bold;
+    private final boolean _italic;
+    private final Color _underlineColor;
+    private final Color _strikeThroughColor;
+    private final Color _boxColor;
 
     public CodeStyle(Color foregroundColor, Color backgroundColor, boolean bold, boolean italic, Color underlineColor,
                      Color strikeThroughColor, Color boxColor) {
@@ -53,76 +58,145 @@ public class CodeStyle {
         return _boxColor;
     }
 
-    public String startHtml() {
-        StringBuffer buffer = new StringBuffer();
+    public CodeStyle withoutBox() {
+        return new CodeStyle(_foregroundColor, _backgroundColor, _bold, _italic, _underlineColor, _strikeThroughColor, null);
+    }
+
+    /**
+     * @return this style overridden by the text attributes in the given order, this style itself if there are none
+     */
+    public CodeStyle merge(TextAttributes[] textAttributes) {
+        if (textAttributes.length == 0) {
+            return this;
+        }
+        Color foregroundColor = _foregroundColor;
+        Color backgroundColor = _backgroundColor;
+        boolean isBold = _bold;
+        boolean isItalic = _italic;
+        Color underlineColor = _underlineColor;
+        Color strikeThroughColor = _strikeThroughColor;
+        Color boxColor = _boxColor;
+
+        for (int i = 0; i < textAttributes.length; i++) {
+            TextAttributes attributes = textAttributes[i];
+            if (attributes == null) {
+                continue;
+            }
+            Color highlightForegroundColor = attributes.getForegroundColor();
+            if (highlightForegroundColor != null) {
+                foregroundColor = highlightForegroundColor;
+            }
+            Color highlightBackgroundColor = attributes.getBackgroundColor();
+            if (highlightBackgroundColor != null) {
+                backgroundColor = highlightBackgroundColor;
+            }
+            EffectType effectType = attributes.getEffectType();
+            Color attributeUnderlineColor =
+                    EffectType.LINE_UNDERSCORE == effectType || EffectType.WAVE_UNDERSCORE == effectType ? attributes.getEffectColor() :
+                    null;
+            if (attributeUnderlineColor != null) {
+                underlineColor = attributeUnderlineColor;
+            }
+            Color attributeStrikeThroughColor = EffectType.STRIKEOUT == effectType ? attributes.getEffectColor() : null;
+            if (attributeStrikeThroughColor != null) {
+                strikeThroughColor = attributeStrikeThroughColor;
+            }
+            Color attributeBoxColor = EffectType.BOXED == effectType ? attributes.getEffectColor() : null;
+            if (attributeBoxColor != null) {
+                boxColor = attributeBoxColor;
+            }
 
+            int fontType = attributes.getFontType();
+            isBold |= (fontType & Font.BOLD) != 0;
+            isItalic |= (fontType & Font.ITALIC) != 0;
+        }
+
+        return new CodeStyle(foregroundColor, backgroundColor, isBold, isItalic, underlineColor, strikeThroughColor, boxColor);
+    }
+
+    /**
+     * The CSS declarations of the nested spans that make up this style, outermost first: box, underline, strike through and
+     * basic text style. Each decoration gets its own span, so that it can have its own color.
+     * If combined, everything is folded into a single declaration instead, using text-decoration-color and the border shorthand.
+     */
+    public String[] getSpanDeclarations(boolean combined) {
+        if(combined) {
+            String declaration = getCombinedDeclaration();
+            return declaration.length() == 0 ? NO_DECLARATIONS : new String[]{declaration};
+        }
+
+        List declarations = new ArrayList(4);
         if(_boxColor != null) {
-            buffer.append("<span style=\"border-style:solid; border-width:0.01mm; border-color:");
-            buffer.append(_colorFormat.format(_boxColor));
-            buffer.append("\">");
+            declarations.add("border-style:solid; border-width:0.01mm; border-color:" + _colorFormat.getHex(_boxColor));
         }
 
         if(_underlineColor != null) {
-            buffer.append("<span style=\"text-decoration:underline;color:");
-            buffer.append(_colorFormat.format(_underlineColor));
-            buffer.append("\">");
+            declarations.add("text-decoration:underline;color:" + _colorFormat.getHex(_underlineColor));
         }
 
         if(_strikeThroughColor != null) {
-            buffer.append("<span style=\"text-decoration:line-through;color:");
-            buffer.append(_colorFormat.format(_strikeThroughColor));
-            buffer.append("\">");
+            declarations.add("text-decoration:line-through;color:" + _colorFormat.getHex(_strikeThroughColor));
         }
 
         if(hasBasicTextStyle()) {
-            buffer.append("<span style=\"");
+            StringBuffer declaration = new StringBuffer();
+            appendBasicTextStyle(declaration);
+            declarations.add(declaration.toString());
+        }
 
-            if(_foregroundColor != null) {
-                buffer.append("color:");
-                buffer.append(_colorFormat.format(_foregroundColor));
-                buffer.append(";");
-            }
+        return (String[]) declarations.toArray(new String[declarations.size()]);
+    }
 
-            if(_backgroundColor != null) {
-                buffer.append("background-color:");
-                buffer.append(_colorFormat.format(_backgroundColor));
-                buffer.append(";");
-            }
+    private String getCombinedDeclaration() {
+        StringBuffer declaration = new StringBuffer();
+        appendBasicTextStyle(declaration);
 
-            if(_bold) {
-                buffer.append("font-weight:bold;");
+        if(_underlineColor != null || _strikeThroughColor != null) {
+            declaration.append("text-decoration:");
+            if(_underlineColor != null) {
+                declaration.append("underline");
             }
-
-            if(_italic) {
-                buffer.append("font-style:italic;");
+            if(_strikeThroughColor != null) {
+                declaration.append(_underlineColor != null ? " line-through" : "line-through");
             }
-
-            buffer.append("\">");
+            // only one decoration color is possible, the underline wins
+            declaration.append(";text-decoration-color:");
+            declaration.append(_colorFormat.getHex(_underlineColor != null ? _underlineColor : _strikeThroughColor));
+            declaration.append(";");
         }
 
-        return new String(buffer);
-    }
-
-    private boolean hasBasicTextStyle() {
-        return _foregroundColor != null | _backgroundColor != null | _bold | _italic;
+        if(_boxColor != null) {
+            declaration.append("border:0.01mm solid ");
+            declaration.append(_colorFormat.getHex(_boxColor));
+            declaration.append(";");
+        }
+        return declaration.toString();
     }
 
-    public String endHtml() {
-        StringBuffer buffer = new StringBuffer();
-        if(hasBasicTextStyle()) {
-            buffer.append("</span>");
+    private void appendBasicTextStyle(StringBuffer declaration) {
+        if(_foregroundColor != null) {
+            declaration.append("color:");
+            declaration.append(_colorFormat.getHex(_foregroundColor));
+            declaration.append(";");
         }
 
-        if(_strikeThroughColor != null) {
-            buffer.append("</span>");
+        if(_backgroundColor != null) {
+            declaration.append("background-color:");
+            declaration.append(_colorFormat.getHex(_backgroundColor));
+            declaration.append(";");
         }
-        if(_underlineColor != null) {
-            buffer.append("</span>");
+
+        if(_bold) {
+            declaration.append("font-weight:bold;");
         }
-        if(_boxColor != null) {
-            buffer.append("</span>");
+
+        if(_italic) {
+            declaration.append("font-style:italic;");
         }
-        return new String(buffer);
+    }
+
+    private boolean hasBasicTextStyle() {
+        return _foregroundColor != null | _backgroundColor != null | _bold | _italic;
     }
 
     public boolean equals(Object o) {
@@ -0,0 +1,131 @@
+package com.eekboom.copy_as_html;
+
+import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.psi.tree.IElementType;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Resolves the code style of a piece of a token for one export. Each distinct combination of active range highlights gets an id and
+ * the style merged from token type and highlights is memoized per (highlight set id, token type index), so every combination is
+ * merged and interned into the palette only once per export.
+ */
+class CodeStyleResolver {
+    private static final int[][] NO_STYLE_IDS = new int[0][];
+
+    private final CodeStyle[] _tokenCodeStyles;
+    private final StylePalette _palette;
+
+    private final Map _highlightSetIds = new HashMap();
+    /**
+     * The ids of the arrays seen so far, a segmenter hands out the same array for the same highlights
+     */
+    private final Map _highlightSetIdsByArray = new IdentityHashMap();
+    private TextAttributes[] _lastHighlightSet;
+    private int _lastHighlightSetId;
+    /**
+     * Palette ids (plus 1, 0 if not yet resolved) by highlight set id and token type index
+     */
+    private int[][] _styleIds = NO_STYLE_IDS;
+
+    /**
+     * @param tokenCodeStyles the code style of each token type by its index, see {@link ExportRequest#getTokenCodeStyles()}
+     */
+    public CodeStyleResolver(CodeStyle[] tokenCodeStyles, StylePalette palette) {
+        _tokenCodeStyles = tokenCodeStyles;
+        _palette = palette;
+    }
+
+    public StylePalette getPalette() {
+        return _palette;
+    }
+
+    /**
+     * @param highlightTextAttributes the attributes of the active range highlights; the same array is expected for as long as
+     * the set of active highlights does not change, see {@link HighlightSegmenter#getTextAttributes()}
+     * @return the palette id of the style
+     */
+    public int getStyleId(IElementType tokenType, TextAttributes[] highlightTextAttributes) {
+        int highlightSetId = getHighlightSetId(highlightTextAttributes);
+        int tokenTypeIndex = tokenType.getIndex();
+        int[] styleIds = _styleIds[highlightSetId];
+        if (styleIds == null || tokenTypeIndex >= styleIds.length) {
+            int[] newStyleIds = new int[Math.max(tokenTypeIndex + 1, 64)];
+            if (styleIds != null) {
+                System.arraycopy(styleIds, 0, newStyleIds, 0, styleIds.length);
+            }
+            styleIds = newStyleIds;
+            _styleIds[highlightSetId] = styleIds;
+        }
+        if (styleIds[tokenTypeIndex] == 0) {
+            CodeStyle tokenCodeStyle = _tokenCodeStyles[tokenTypeIndex];
+            CodeStyle codeStyle = tokenCodeStyle.merge(highlightTextAttributes);
+            styleIds[tokenTypeIndex] = _palette.intern(codeStyle) + 1;
+        }
+        return styleIds[tokenTypeIndex] - 1;
+    }
+
+    private int getHighlightSetId(TextAttributes[] highlightTextAttributes) {
+        if (highlightTextAttributes == _lastHighlightSet) {
+            return _lastHighlightSetId;
+        }
+        Integer id = (Integer) _highlightSetIdsByArray.get(highlightTextAttributes);
+        if (id == null) {
+            // another segmenter, e.g. of an earlier pass, may have handed out the same highlights in another array
+            HighlightSet highlightSet = new HighlightSet(highlightTextAttributes);
+            id = (Integer) _highlightSetIds.get(highlightSet);
+            if (id == null) {
+                id = Integer.valueOf(_highlightSetIds.size());
+                _highlightSetIds.put(highlightSet, id);
+                if (_styleIds.length < _highlightSetIds.size()) {
+                    int[][] styleIds = new int[Math.max(8, _styleIds.length * 2)][];
+                    System.arraycopy(_styleIds, 0, styleIds, 0, _styleIds.length);
+                    _styleIds = styleIds;
+                }
+            }
+            _highlightSetIdsByArray.put(highlightTextAttributes, id);
+        }
+        _lastHighlightSet = highlightTextAttributes;
+        _lastHighlightSetId = id.intValue();
+        return _lastHighlightSetId;
+    }
+
+    /**
+     * Text attributes compared by identity, highlights of the same kind usually share the attribute instance of the color scheme.
+     */
+    private static class HighlightSet {
+        private final TextAttributes[] _textAttributes;
+        private final int _hashCode;
+
+        public HighlightSet(TextAttributes[] textAttributes) {
+            _textAttributes = textAttributes;
+            int hashCode = 0;
+            for (int i = 0; i < textAttributes.length; i++) {
+                hashCode = 31 * hashCode + System.identityHashCode(textAttributes[i]);
+            }
+            _hashCode = hashCode;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof HighlightSet)) {
+                return false;
+            }
+            TextAttributes[] textAttributes = ((HighlightSet) o)._textAttributes;
+            if (textAttributes.length != _textAttributes.length) {
+                return false;
+            }
+            for (int i = 0; i < textAttributes.length; i++) {
+                if (textAttributes[i] != _textAttributes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int hashCode() {
+            return _hashCode;
+        }
+    }
+}
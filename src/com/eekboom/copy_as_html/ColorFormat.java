@@ -6,24 +6,52 @@ import java.text.FieldPosition;
 import java.awt.*;
 
 public class ColorFormat extends Format {
+    /**
+     * The two lower case hex digits of each byte value
+     */
+    private static final char[] HEX_PAIRS = new char[256 * 2];
+
+    static {
+        char[] digits = "0123456789abcdef".toCharArray();
+        for (int i = 0; i < 256; i++) {
+            HEX_PAIRS[2 * i] = digits[i >> 4];
+            HEX_PAIRS[2 * i + 1] = digits[i & 0xf];
+        }
+    }
+
     public Object parseObject(String source, ParsePosition pos) {
         return null;
     }
 
     public StringBuffer format(Object obj, StringBuffer toAppendTo, FieldPosition pos) {
-        Color color = (Color) obj;
-        toAppendTo.append('#');
-        appendColor(toAppendTo, color.getRed());
-        appendColor(toAppendTo, color.getGreen());
-        appendColor(toAppendTo, color.getBlue());
-        return toAppendTo;
+        return toAppendTo.append(getHex((Color) obj));
     }
 
-    private void appendColor(StringBuffer buffer, int value) {
-        String hex = Integer.toHexString(value);
-        if (hex.length() < 2) {
-            buffer.append('0');
-        }
-        buffer.append(hex);
+    /**
+     * Called once for each style interned into a palette, which keeps the encoded colors in its span tags, and once for the pre
+     * element of an export, so nothing is cached here.
+     * @return the color as #rrggbb
+     */
+    public String getHex(Color color) {
+        char[] chars = new char[7];
+        encode(color.getRGB(), chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Writes the color as #rrggbb without allocating anything.
+     * @return the offset after the last char written
+     */
+    public static int encode(int rgb, char[] chars, int offset) {
+        chars[offset++] = '#';
+        offset = encodeByte((rgb >> 16) & 0xff, chars, offset);
+        offset = encodeByte((rgb >> 8) & 0xff, chars, offset);
+        return encodeByte(rgb & 0xff, chars, offset);
+    }
+
+    private static int encodeByte(int value, char[] chars, int offset) {
+        chars[offset] = HEX_PAIRS[2 * value];
+        chars[offset + 1] = HEX_PAIRS[2 * value + 1];
+        return offset + 2;
     }
 }
@@ -64,6 +64,9 @@ public class Configuration implements ApplicationComponent, Configurable, JDOMEx
     private JCheckBox _tabsToSpacesCheckBox;
     private JFormattedTextField _tabsField;
 
+    private JCheckBox _useCssClassesCheckBox;
+    private JCheckBox _combineSpansCheckBox;
+
     public boolean _addBorder = true;
     public boolean _includeWarningHighlights;
     public int _mimeTypes = ClipboardHelper.TYPE_HTML_AND_PLAIN;
@@ -81,6 +84,9 @@ public class Configuration implements ApplicationComponent, Configurable, JDOMEx
     public boolean _tabsToSpaces = true;
     public int _tabSize = 4;
 
+    public boolean _useCssClasses;
+    public boolean _combineSpans;
+
     private static Configuration _instance;
 
     public Configuration() {
@@ -143,6 +149,14 @@ public class Configuration implements ApplicationComponent, Configurable, JDOMEx
         _tabsField.setHorizontalAlignment(JTextField.LEFT);
         _tabsField.setAlignmentX(0.0F);
 
+        // css classes
+        _useCssClassesCheckBox = new JCheckBox("Use CSS classes (one style element instead of inline styles)");
+        _useCssClassesCheckBox.setToolTipText("Much smaller HTML, but the target must keep the style element.");
+
+        // combined spans
+        _combineSpansCheckBox = new JCheckBox("Combine decorations into a single span");
+        _combineSpansCheckBox.setToolTipText("Smaller HTML, but underline and strike through share one color.");
+
         // font options
         _fontSizeFollowsEditorRadioButton = new JRadioButton("Follow Editor Setting");
         _fontSizeFixedRadioButton = new JRadioButton("Fixed Size");
@@ -208,6 +222,9 @@ public class Configuration implements ApplicationComponent, Configurable, JDOMEx
         _panel.add(new JLabel("First Line Number"), "0 14");
         _panel.add(_lineNosStartAt1RadioButton, "1 14");
         _panel.add(_lineNosStartAtEditorRowRadioButton, "1 15");
+
+        _panel.add(_useCssClassesCheckBox, "0 16 2 1");
+        _panel.add(_combineSpansCheckBox, "0 17 2 1");
     }
 
     public void initComponent() {
@@ -261,6 +278,14 @@ public class Configuration implements ApplicationComponent, Configurable, JDOMEx
         return _unindent;
     }
 
+    public boolean isUseCssClasses() {
+        return _useCssClasses;
+    }
+
+    public boolean isCombineSpans() {
+        return _combineSpans;
+    }
+
     public int getMimeTypes() {
         return _mimeTypes;
     }
@@ -306,9 +331,12 @@ public class Configuration implements ApplicationComponent, Configurable, JDOMEx
                                     || _padding != ((Number) _paddingField.getValue()).intValue();
         boolean isTabsModified = _tabsToSpaces != _tabsToSpacesCheckBox.isSelected()
                                     || _tabSize != ((Number) _tabsField.getValue()).intValue();
+        boolean cssClassesChanged = _useCssClasses != _useCssClassesCheckBox.isSelected();
+        boolean combineSpansChanged = _combineSpans != _combineSpansCheckBox.isSelected();
 
         boolean isModified = borderChanged || warningHighlightChanged || mimeTypesChanged || includeLineNosChanged || lineNosStartChanged
-                             || isFontModified || unindentChanged || isPaddingModified || isTabsModified;
+                             || isFontModified || unindentChanged || isPaddingModified || isTabsModified || cssClassesChanged
+                             || combineSpansChanged;
 
         return isModified;
     }
@@ -334,6 +362,8 @@ public class Configuration implements ApplicationComponent, Configurable, JDOMEx
         _padding = ((Number) _paddingField.getValue()).intValue();
         _tabsToSpaces = _tabsToSpacesCheckBox.isSelected();
         _tabSize = ((Number) _tabsField.getValue()).intValue();
+        _useCssClasses = _useCssClassesCheckBox.isSelected();
+        _combineSpans = _combineSpansCheckBox.isSelected();
         _mimeTypes = getMimeType();
         _lineNosStartAt1 = _lineNosStartAt1RadioButton.isSelected();
         if (_includeLineNosAlways.isSelected()) {
@@ -365,6 +395,8 @@ public class Configuration implements ApplicationComponent, Configurable, JDOMEx
         _paddingField.setValue(Integer.valueOf(_padding));
         _tabsToSpacesCheckBox.setSelected(_tabsToSpaces);
         _tabsField.setValue(Integer.valueOf(_tabSize));
+        _useCssClassesCheckBox.setSelected(_useCssClasses);
+        _combineSpansCheckBox.setSelected(_combineSpans);
 
         switch (_mimeTypes) {
             case ClipboardHelper.TYPE_HTML_AND_PLAIN:
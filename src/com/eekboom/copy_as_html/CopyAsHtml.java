@@ -2,10 +2,14 @@ package com.eekboom.copy_as_html;
 
 import com.intellij.openapi.components.ApplicationComponent;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.colors.EditorColorsListener;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.colors.EditorColorsScheme;
 
 public class CopyAsHtml implements ApplicationComponent {
     private static Logger _logger;
     private static CopyAsHtml _instance;
+    private EditorColorsListener _colorsListener;
 
     public CopyAsHtml() {
     }
@@ -22,10 +26,21 @@ public class CopyAsHtml implements ApplicationComponent {
         _instance = this;
         _logger = Logger.getInstance(getClass().getName());
         _logger.info("CopyAsHtml.initComponent()");
+        _colorsListener = new EditorColorsListener() {
+            public void globalSchemeChange(EditorColorsScheme scheme) {
+                TokenStyleCache.clear();
+                ExportCache.clear();
+            }
+        };
+        EditorColorsManager.getInstance().addEditorColorsListener(_colorsListener);
     }
 
     public void disposeComponent() {
         _instance = null;
+        EditorColorsManager.getInstance().removeEditorColorsListener(_colorsListener);
+        _colorsListener = null;
+        TokenStyleCache.clear();
+        ExportCache.clear();
         _logger.info("CopyAsHtml.disposeComponent()");
         _logger = null;
     }
@@ -1,20 +1,16 @@
 package com.eekboom.copy_as_html;
 
-import com.intellij.lang.Language;
-import com.intellij.lexer.Lexer;
 import com.intellij.openapi.actionSystem.*;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
-import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
-import com.intellij.openapi.editor.HighlighterColors;
-import com.intellij.openapi.editor.colors.EditorColors;
-import com.intellij.openapi.editor.colors.EditorColorsScheme;
-import com.intellij.openapi.editor.colors.TextAttributesKey;
-import com.intellij.openapi.editor.markup.*;
-import com.intellij.openapi.fileTypes.SyntaxHighlighter;
+import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.TextRange;
-import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.tree.IElementType;
 
@@ -22,27 +18,30 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.datatransfer.Clipboard;
 import java.awt.event.KeyEvent;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.text.Format;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.OutputStream;
 
 public class CopyAsHtmlAction extends AnAction {
     private static final Logger LOGGER = Logger.getInstance(CopyAsHtmlAction.class.getName());
-    private static final Format _colorFormat = new ColorFormat();
-    private int _lineNumberCharCount;
-    private CodeStyle _lineNoCodeStyle;
-    private boolean _isStartOfLine;
-    private int _lineNo;
-    private boolean _showLineNos;
-    private boolean _unindent;
-    private int _highlightStartIndex;
-    private Integer _fontSize;
-    private String _tabText;
+    private static final ColorFormat _colorFormat = new ColorFormat();
+    /**
+     * How many tokens are rendered between checks for cancellation
+     */
+    private static final int PROGRESS_INTERVAL = 1024;
+    /**
+     * How many bytes are encoded before they are handed over to an output stream
+     */
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+    /**
+     * Exports up to this many chars are rendered when pasted, they take less time than a paste target would notice
+     */
+    static final int LAZY_RENDER_MAX_LENGTH = 64 * 1024;
+
+    /**
+     * Counts the copies, so a background task that completes after a later copy doesn't overwrite it. Only used on the event
+     * dispatch thread.
+     */
+    private int _copyCount;
 
     public CopyAsHtmlAction() {
         super("Copy as HTML");
@@ -58,8 +57,13 @@ public class CopyAsHtmlAction extends AnAction {
         presentation.setEnabled(editor != null);
     }
 
+    /**
+     * Only captures the export on the event dispatch thread. Publishes a small export right away, each flavor is rendered when it
+     * is pasted. Otherwise, or if the clipboard needs the rendered text up front, renders it in a background task, which can be
+     * canceled, and publishes it when done. A paste, which may well happen on the event dispatch thread, never has to wait for a
+     * large export to be rendered. A render that completes after a later copy has been started is dropped.
+     */
     public void actionPerformed(AnActionEvent event) {
-        // Look at EditorColors, HighlighterColors and CodeInsightColors for color definitions
         DataContext dataContext = event.getDataContext();
         Project project = (Project) dataContext.getData(DataConstants.PROJECT);
         Editor editor = (Editor) dataContext.getData(DataConstants.EDITOR);
@@ -69,419 +73,455 @@ public class CopyAsHtmlAction extends AnAction {
         TextRange textRange = Utils.getSelectedTextRange(editor);
 
         PsiFile psiFile = (PsiFile) dataContext.getData(DataConstants.PSI_FILE);
-        EditorColorsScheme colorsScheme = editor.getColorsScheme();
-
-        CodeStyle defaultCodeStyle = getDefaultCodeStyle(editor);
-
-        Document document = editor.getDocument();
-
-        Configuration configuration = Configuration.getInstance();
-
-        int startLineNo = document.getLineNumber(textRange.getStartOffset()) + 1;
-        int endLineNo = document.getLineNumber(textRange.getEndOffset() - 1) + 1;
-        int maxLineNo = configuration.getLineNosStartAt1() ? (endLineNo - startLineNo + 1) : endLineNo;
-        _lineNumberCharCount = (int) Math.ceil(Math.log(maxLineNo + 1) / Math.log(10));
-        Color lineNosColor = colorsScheme.getColor(EditorColors.LINE_NUMBERS_COLOR);
-        Color lineNosBackgroundColor = colorsScheme.getColor(EditorColors.LEFT_GUTTER_BACKGROUND);
-        _lineNoCodeStyle = new CodeStyle(lineNosColor, lineNosBackgroundColor, false, false, null, null, null);
-        _lineNo = configuration.getLineNosStartAt1() ? 0 : startLineNo;
-        _isStartOfLine = true;
-        _highlightStartIndex = 0;
-        String lineNoType = configuration.getLineNoType();
-        if (Configuration.LINE_NO_FOLLOW.equals(lineNoType)) {
-            _showLineNos = editor.getSettings().isLineNumbersShown();
-        }
-        else {
-            _showLineNos = Configuration.LINE_NO_ALWAYS.equals(lineNoType);
-        }
 
-        _unindent = configuration.isUnindent();
+        final ExportRequest request = createRequest(project, editor, psiFile, textRange);
+        final Clipboard systemClipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+        final ClipboardHelper.Content content = createContent(request, null);
+        final int copyNo = ++_copyCount;
+        if (!ClipboardHelper.isPublishedRendered(systemClipboard)) {
+            if (request.getEndOffset() - request.getStartOffset() <= LAZY_RENDER_MAX_LENGTH) {
+                // the clipboard may keep the request for long, so it must not wait there for the scheme to resolve its tokens
+                request.lexTokens();
+                ClipboardHelper.publish(systemClipboard, request.getMimeTypes(), content);
+                return;
+            }
+            ProgressManager.getInstance().run(new Task.Backgroundable(project, "Copying as HTML", true) {
+                private ClipboardHelper.HtmlTransferable _transferable;
+
+                public void run(ProgressIndicator indicator) {
+                    startProgress(request, indicator);
+                    _transferable = new ClipboardHelper.HtmlTransferable(request.getMimeTypes(), createContent(request, indicator));
+                    try {
+                        _transferable.render();
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException("Can't copy as HTML", e);
+                    }
+                }
 
-        String fontSizeType = configuration.getFontSizeType();
-        _fontSize = null;
-        if (Configuration.FONT_SIZE_FOLLOW.equals(fontSizeType)) {
-            _fontSize = Integer.valueOf(colorsScheme.getEditorFontSize());
-        }
-        else if(Configuration.FONT_SIZE_FIXED.equals(fontSizeType)) {
-            _fontSize = Integer.valueOf(configuration.getFontSize());
-        }
-        _tabText = null;
-        if (configuration.isTabsToSpaces()) {
-            _tabText = Utils.repeat(' ', configuration.getTabSize());
+                public void onSuccess() {
+                    if (copyNo != _copyCount) {
+                        _transferable.dispose();
+                        return;
+                    }
+                    ClipboardHelper.publish(systemClipboard, _transferable);
+                }
+
+                public void onCancel() {
+                    if (_transferable != null) {
+                        _transferable.dispose();
+                    }
+                }
+            });
+            return;
         }
+        ProgressManager.getInstance().run(new Task.Backgroundable(project, "Copying as HTML", true) {
+            private byte[] _cfHtml;
+            private String _text;
+
+            public void run(ProgressIndicator indicator) {
+                startProgress(request, indicator);
+                int type = request.getMimeTypes();
+                if (type == ClipboardHelper.TYPE_PLAIN) {
+                    _text = renderHtml(request, indicator);
+                }
+                else {
+                    _cfHtml = renderCfHtml(request, indicator);
+                    if (type == ClipboardHelper.TYPE_HTML_AND_PLAIN) {
+                        _text = renderPlainText(request);
+                    }
+                }
+            }
 
-        final String html = copyAsHtml(project, defaultCodeStyle, colorsScheme, editor, psiFile, textRange);
-        LOGGER.info(html);
-        Clipboard systemClipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
-        int mimeTypes = configuration.getMimeTypes();
-        ClipboardHelper.publish(systemClipboard, mimeTypes, html);
+            public void onSuccess() {
+                if (copyNo != _copyCount) {
+                    return;
+                }
+                ClipboardHelper.publishRendered(systemClipboard, request.getMimeTypes(), _cfHtml, _text, content);
+            }
+        });
     }
 
-    private CodeStyle getDefaultCodeStyle(Editor editor) {
-        EditorColorsScheme colorsScheme = editor.getColorsScheme();
-        Color backgroundColor = getBackgroundColor(editor);
-        Color foregroundColor = getForegroundColor(editor);
-
-        TextAttributes textAttributes = colorsScheme.getAttributes(HighlighterColors.TEXT);
-        int fontType = textAttributes.getFontType();
-
-        boolean isBold = (fontType & Font.BOLD) != 0;
-        boolean isItalic = (fontType & Font.ITALIC) != 0;
-        EffectType effectType = textAttributes.getEffectType();
-        Color underlineColor =
-                EffectType.LINE_UNDERSCORE == effectType || EffectType.WAVE_UNDERSCORE == effectType ? textAttributes.getEffectColor() :
-                null;
-        Color strikeThroughColor = EffectType.STRIKEOUT == effectType ? textAttributes.getEffectColor() : null;
-        Color boxColor = EffectType.BOXED == effectType ? textAttributes.getEffectColor() : null;
-        CodeStyle defaultCodeStyle = new CodeStyle(foregroundColor, backgroundColor, isBold, isItalic, underlineColor, strikeThroughColor,
-                                                   boxColor);
-        return defaultCodeStyle;
+    /**
+     * The render reports the fraction of the range it has done, unless the range is empty.
+     */
+    private static void startProgress(ExportRequest request, ProgressIndicator indicator) {
+        if (request.getEndOffset() > request.getStartOffset()) {
+            indicator.setIndeterminate(false);
+        }
     }
 
-    private Color getForegroundColor(Editor editor) {
-        EditorColorsScheme colorsScheme = editor.getColorsScheme();
-        TextAttributes textAttributes = colorsScheme.getAttributes(HighlighterColors.TEXT);
-        Color foregroundColor = textAttributes.getForegroundColor();
-        return foregroundColor;
-    }
+    /**
+     * @param indicator null if the render can't be canceled
+     */
+    private static ClipboardHelper.Content createContent(final ExportRequest request, final ProgressIndicator indicator) {
+        return new ClipboardHelper.Content() {
+            public void writeHtml(OutputStream out) throws IOException {
+                CopyAsHtmlAction.writeHtml(request, out, indicator);
+            }
 
-    private Color getBackgroundColor(Editor editor) {
-        Document document = editor.getDocument();
-        EditorColorsScheme colorsScheme = editor.getColorsScheme();
-        TextAttributes textAttributes = colorsScheme.getAttributes(HighlighterColors.TEXT);
-        boolean isWritable = document.isWritable();
-        Color backgroundColor;
-        if (isWritable) {
-            backgroundColor = textAttributes.getBackgroundColor();
-        }
-        else {
-            backgroundColor = colorsScheme.getColor(EditorColors.READONLY_BACKGROUND_COLOR);
-        }
-        if (backgroundColor == null) {
-            backgroundColor = Color.WHITE;
-        }
-        return backgroundColor;
+            public String getPlainText() {
+                return renderPlainText(request);
+            }
+        };
     }
 
     /**
-     * The API to get a SyntaxHighlighter for a PsiFile changed form Irida (Idea 5.x) to Demetra (Idea 6.x) and then again to Diana (Idea
-     * 8.x). Handle all of the ways via reflection.
+     * Renders the HTML as UTF-8 right into the envelope of the Windows clipboard format.
      */
-    private static SyntaxHighlighter getSyntaxHighlighter(Language language, Project project, VirtualFile virtualFile) {
-        SyntaxHighlighter syntaxHighlighter;
+    private static byte[] renderCfHtml(ExportRequest request, ProgressIndicator indicator) {
+        ByteSink sink = null;
         try {
-            Class shf = Class.forName("com.intellij.openapi.fileTypes.SyntaxHighlighterFactory", true,
-                                      CopyAsHtmlAction.class.getClassLoader());
-            syntaxHighlighter = (SyntaxHighlighter) reflect("Can't get SyntaxHighlighter", shf, "getSyntaxHighlighter", null,
-                                                            new Class[]{Language.class, Project.class, VirtualFile.class},
-                                                            new Object[]{language, project, virtualFile});
+            sink = CfHtmlEncoder.createSink();
+            writeCachedHtml(request, sink, indicator);
+            return CfHtmlEncoder.finish(sink);
         }
-        catch (Exception noIdea8) {
-            try {
-                syntaxHighlighter = (SyntaxHighlighter) reflect("Can't get SyntaxHighlighter", Language.class, "getSyntaxHighlighter",
-                                                                language,
-                                                                new Class[]{Project.class, VirtualFile.class},
-                                                                new Object[]{project, virtualFile});
-            }
-            catch (RuntimeException ignore) {
-                syntaxHighlighter = (SyntaxHighlighter) reflect("Can't get SyntaxHighlighter", Language.class, "getSyntaxHighlighter",
-                                                                language,
-                                                                new Class[]{Project.class}, new Object[]{project});
+        catch (IOException e) {
+            // can't happen when encoding into memory
+            throw new RuntimeException("Can't copy as HTML", e);
+        }
+        finally {
+            if (sink != null) {
+                sink.release();
             }
         }
-
-        return syntaxHighlighter;
     }
 
-    private static Object reflect(String errorMessage, Class clazz, String methodName, Object object, Class[] parameterClasses,
-                                  Object[] args)
-    {
+    private static String renderHtml(ExportRequest request, ProgressIndicator indicator) {
+        String html;
+        ByteSink sink = new ByteSink();
         try {
-            Method method = clazz.getMethod(methodName, parameterClasses);
-            Object result = method.invoke(object, args);
-            return result;
+            writeCachedHtml(request, sink, indicator);
+            html = new String(sink.getBytes(), 0, sink.size(), "UTF-8");
         }
-        catch (NoSuchMethodException e) {
-            throw new RuntimeException(errorMessage, e);
+        catch (IOException e) {
+            // can't happen when rendering into memory
+            throw new RuntimeException("Can't copy as HTML", e);
         }
-        catch (InvocationTargetException e) {
-            throw new RuntimeException(errorMessage, e);
+        finally {
+            sink.release();
         }
-        catch (IllegalAccessException e) {
-            throw new RuntimeException(errorMessage, e);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(html);
         }
+        return html;
     }
 
-    private String copyAsHtml(Project project, CodeStyle defaultCodeStyle, EditorColorsScheme colorsScheme,
-                              Editor editor, PsiFile psiFile, TextRange textRange)
-    {
-        Language language = psiFile.getLanguage();
-        VirtualFile virtualFile = psiFile.getVirtualFile();
-
-        SyntaxHighlighter syntaxHighlighter = getSyntaxHighlighter(language, project, virtualFile);
-        Lexer lexer = syntaxHighlighter.getHighlightingLexer();
-        String text = psiFile.getText();
-        int startOffset = textRange.getStartOffset();
-        int endOffset = textRange.getEndOffset();
-        if (endOffset > 0 && text.charAt(endOffset - 1) == '\n') {
-            --endOffset;
-        }
-        StringBuffer buffer = new StringBuffer();
-        CodeStyle currentCodeStyle = null;
-
-        int commonWhiteSpacePrefixCount = _unindent ? getCommonWhiteSpacePrefixCount(text, startOffset, endOffset) : 0;
-
-        List rangeHighlighters = getRangeHighlighters(project, editor);
-
-        Configuration configuration = Configuration.getInstance();
-        buffer.append("<pre style=\"line-height: 100%;font-family:monospace;background-color:");
-        buffer.append(_colorFormat.format(defaultCodeStyle.getBackgroundColor()));
-        if (configuration.getAddBorder()) {
-            buffer.append("; border-width:0.01mm; border-color:#000000; border-style:solid;");
+    /**
+     * Writes the HTML of an export that has been rendered before from the cache. Otherwise renders it straight into the sink and,
+     * if the export is small enough, copies it for the cache: at the end from a sink that holds all of it, otherwise by capturing
+     * it on the way to the output stream.
+     */
+    private static void writeCachedHtml(ExportRequest request, ByteSink sink, ProgressIndicator indicator) throws IOException {
+        if (request.getEndOffset() - request.getStartOffset() > ExportCache.MAX_CACHED_LENGTH) {
+            writeHtml(request, sink, indicator);
+            return;
         }
-        if (configuration.isIncludePadding()) {
-            buffer.append("padding:").append(configuration.getPadding()).append("px;");
+        byte[] html = ExportCache.get(request.getCacheKey());
+        if (html != null) {
+            sink.write(html);
+            return;
         }
-        if (_fontSize != null) {
-            buffer.append("font-size:").append(_fontSize).append("pt;");
+        if (sink.isHoldingAll()) {
+            int start = sink.size();
+            writeHtml(request, sink, indicator);
+            ExportCache.put(request.getCacheKey(), sink.toByteArray(start));
+            return;
         }
-        buffer.append("\">");
-
-        lexer.start(text);
-
-        IElementType tokenType;
-        while ((tokenType = lexer.getTokenType()) != null) {
-            int tokenStart = lexer.getTokenStart();
-            int tokenEnd = lexer.getTokenEnd();
-            if (tokenStart < endOffset && tokenEnd >= startOffset) {
-                tokenStart = Math.max(tokenStart, startOffset);
-                tokenEnd = Math.min(tokenEnd, endOffset);
-                
-                StringBuffer tokenText = new StringBuffer();
-                tokenText.append(text, tokenStart, tokenEnd);
-                Utils.quoteForXml(tokenText);
-
-                CodeStyle codeStyle = getCodeStyle(defaultCodeStyle, syntaxHighlighter, colorsScheme, tokenType, tokenStart,
-                                                   rangeHighlighters);
-                currentCodeStyle = appendToBuffer(buffer, currentCodeStyle, codeStyle, tokenText, commonWhiteSpacePrefixCount);
-            }
-            lexer.advance();
+        ByteSink capture = new ByteSink();
+        try {
+            sink.startCapture(capture);
+            writeHtml(request, sink, indicator);
+            sink.endCapture();
+            ExportCache.put(request.getCacheKey(), capture.toByteArray());
         }
-        if (currentCodeStyle != null) {
-            buffer.append(currentCodeStyle.endHtml());
+        finally {
+            capture.release();
         }
-        buffer.append("</pre>");
-
-        return new String(buffer);
     }
 
-    private int getCommonWhiteSpacePrefixCount(String chars, int startOffset, int endOffset) {
-        String text = chars.substring(startOffset, endOffset);
-        String[] lines = LINE_PATTERN.split(text, -1);
-
-        String whiteSpace = null;
-
-        for (int i = 0; i < lines.length; i++) {
-            String line = lines[i];
-            if (isWhiteSpace(line)) {
-                continue;
-            }
-            String testWhiteSpace = getWhiteSpacePrefix(line);
-            if (testWhiteSpace.length() == 0) {
-                return 0;
-            }
-            if (whiteSpace == null) {
-                whiteSpace = testWhiteSpace;
+    /**
+     * The text of the range as it appears in the HTML, unindented and with tabs replaced, but without line numbers and without
+     * resolving any styles.
+     */
+    private static String renderPlainText(ExportRequest request) {
+        CharSequence text = request.getText();
+        int startOffset = request.getStartOffset();
+        int endOffset = request.getEndOffset();
+        int commonWhiteSpacePrefixCount = request.isUnindent() ? getCommonWhiteSpacePrefixCount(text, startOffset, endOffset) : 0;
+        String tabText = request.getTabText();
+
+        StringBuilder buffer = new StringBuilder(endOffset - startOffset);
+        LineScanner lineScanner = new LineScanner();
+        lineScanner.reset(text, startOffset, endOffset);
+        while (lineScanner.nextLine()) {
+            int lineStart = lineScanner.getLineStart();
+            int lineEnd = lineScanner.getLineEnd();
+            if (lineEnd - lineStart >= commonWhiteSpacePrefixCount) {
+                lineStart += commonWhiteSpacePrefixCount;
             }
-            else if (testWhiteSpace.length() < whiteSpace.length()) {
-                if (whiteSpace.startsWith(testWhiteSpace)) {
-                    whiteSpace = testWhiteSpace;
+            for (int i = lineStart; i < lineEnd; i++) {
+                char c = text.charAt(i);
+                if (c == '\t' && tabText != null) {
+                    buffer.append(tabText);
                 }
                 else {
-                    return 0;
+                    buffer.append(c);
                 }
             }
-            else if (!testWhiteSpace.startsWith(whiteSpace)) {
-                return 0;
+            if (lineScanner.isTerminated()) {
+                buffer.append('\n');
             }
         }
+        return new String(buffer);
+    }
 
-        return whiteSpace == null ? 0 : whiteSpace.length();
+    /**
+     * Renders the text range of the editor as HTML, streaming it as UTF-8 to the output stream, e.g. a file.
+     */
+    public void writeHtml(Project project, Editor editor, PsiFile psiFile, TextRange textRange, OutputStream out) throws IOException {
+        writeHtml(createRequest(project, editor, psiFile, textRange), out, null);
     }
 
-    private static boolean isWhiteSpace(String text) {
-        for (int i = 0, length = text.length(); i < length; ++i) {
-            if (!Character.isWhitespace(text.charAt(i))) {
-                return false;
+    /**
+     * Renders the text range of the editor as HTML, appending it token by token to the output, e.g. a StringBuilder or a Writer.
+     */
+    public void writeHtml(Project project, Editor editor, PsiFile psiFile, TextRange textRange, Appendable out) throws IOException {
+        writeHtml(createRequest(project, editor, psiFile, textRange), out, null);
+    }
+
+    private static ExportRequest createRequest(final Project project, final Editor editor, final PsiFile psiFile,
+                                               final TextRange textRange)
+    {
+        return (ExportRequest) ApplicationManager.getApplication().runReadAction(new Computable() {
+            public Object compute() {
+                return new ExportRequest(project, editor, psiFile, textRange);
             }
+        });
+    }
+
+    /**
+     * Encodes the HTML as UTF-8 while rendering it, without any chars in between.
+     */
+    private static void writeHtml(ExportRequest request, OutputStream out, ProgressIndicator indicator) throws IOException {
+        ByteSink sink = new ByteSink(out, STREAM_BUFFER_SIZE);
+        try {
+            writeCachedHtml(request, sink, indicator);
+            sink.flush();
+        }
+        finally {
+            sink.release();
         }
-        return true;
     }
 
-    private String getWhiteSpacePrefix(String line) {
-        int charIndex = 0;
-        int length = line.length();
-        while (length > charIndex && Character.isWhitespace(line.charAt(charIndex))) {
-            ++charIndex;
+    /**
+     * Works on the captured request and a context of its own only, so it can run on any thread, also concurrently.
+     * @param indicator null if the render can't be canceled
+     */
+    static void writeHtml(ExportRequest request, Appendable out, ProgressIndicator indicator) throws IOException {
+        CharSequence text = request.getText();
+        int startOffset = request.getStartOffset();
+        int endOffset = request.getEndOffset();
+        int commonWhiteSpacePrefixCount = request.isUnindent() ? getCommonWhiteSpacePrefixCount(text, startOffset, endOffset) : 0;
+
+        CodeStyle defaultCodeStyle = request.getDefaultCodeStyle();
+        StyleSheet styleSheet = new StyleSheet(request.isUseCssClasses());
+        StylePalette palette = new StylePalette(styleSheet, request.isCombineSpans());
+        CodeStyleResolver codeStyleResolver = new CodeStyleResolver(request.getTokenCodeStyles(), palette);
+        RenderContext context = new RenderContext(request, codeStyleResolver, palette.intern(request.getLineNoCodeStyle()),
+                                                  commonWhiteSpacePrefixCount);
+
+        StringBuffer preDeclaration = new StringBuffer();
+        preDeclaration.append("line-height: 100%;font-family:monospace;background-color:");
+        preDeclaration.append(_colorFormat.getHex(defaultCodeStyle.getBackgroundColor()));
+        if (request.isAddBorder()) {
+            preDeclaration.append("; border-width:0.01mm; border-color:#000000; border-style:solid;");
+        }
+        if (request.isIncludePadding()) {
+            preDeclaration.append("padding:").append(request.getPadding()).append("px;");
+        }
+        if (request.getFontSize() != null) {
+            preDeclaration.append("font-size:").append(request.getFontSize()).append("pt;");
         }
-        return line.substring(0, charIndex);
+        String preAttribute = styleSheet.getAttribute(preDeclaration.toString());
+
+        if (styleSheet.isUseClasses()) {
+            // The style element has to come first, but the classes are only known after rendering.
+            // Resolve the styles the render may use up front, so that nothing needs to be buffered.
+            resolveStyles(context);
+            styleSheet.appendStyleElement(out);
+        }
+
+        HtmlWriter htmlWriter = new HtmlWriter(out, palette, request.getTabText());
+        htmlWriter.startPre(preAttribute);
+        render(htmlWriter, context, indicator);
+        htmlWriter.endPre();
     }
 
-    private List getRangeHighlighters(Project project, Editor editor) {
-        MarkupModel documentMarkupModel = editor.getMarkupModel();
-        RangeHighlighter[] highlighters = documentMarkupModel.getAllHighlighters();
-        List rangeHighlighters = new ArrayList(highlighters.length);
-        Configuration configuration = Configuration.getInstance();
-        boolean includeWarningHighlights = configuration.getIncludeWarningHighlights();
-        for (int i = 0; i < highlighters.length; i++) {
-            RangeHighlighter highlighter = highlighters[i];
-            int layer = highlighter.getLayer();
-            if (layer == HighlighterLayer.SYNTAX || layer == HighlighterLayer.ADDITIONAL_SYNTAX
-                || includeWarningHighlights && (layer == HighlighterLayer.WARNING || layer == HighlighterLayer.ERROR))
-            {
-                int highlighterStartOffset = highlighter.getStartOffset();
-                int highlighterEndOffset = highlighter.getEndOffset();
-                TextAttributes textAttributes = highlighter.getTextAttributes();
-                // Don't know why textAttributes can be null, but happen e.g. in class java.lang.String
-                if (textAttributes != null) {
-                    RangeHighlight rangeHighlight = new RangeHighlight(highlighterStartOffset, highlighterEndOffset, textAttributes);
-                    rangeHighlighters.add(rangeHighlight);
+    /**
+     * Resolves the style of each distinct pair of token type and set of range highlights in the range, so that the palette hands out
+     * the classes of all of them, without a pass over all tokens: the token types of the range are known from the request, only
+     * the tokens under a highlight are looked at. A token type that only occurs under highlights may get a class it doesn't use.
+     */
+    private static void resolveStyles(RenderContext context) {
+        ExportRequest request = context.getRequest();
+        CodeStyleResolver codeStyleResolver = context.getCodeStyleResolver();
+        StylePalette palette = codeStyleResolver.getPalette();
+        int endOffset = request.getEndOffset();
+        TokenSnapshot tokens = request.getTokens();
+        HighlightSegmenter highlightSegmenter = new HighlightSegmenter(request.getRangeHighlights());
+        int start = request.getStartOffset();
+        highlightSegmenter.seek(start);
+        boolean isUnhighlightedResolved = false;
+        while (start < endOffset) {
+            highlightSegmenter.advanceTo(start);
+            int end = Math.min(endOffset, highlightSegmenter.getNextBoundary());
+            TextAttributes[] highlightTextAttributes = highlightSegmenter.getTextAttributes();
+            if (highlightTextAttributes.length > 0) {
+                for (int i = tokens.indexOf(start); i < tokens.getCount() && tokens.getTokenStart(i) < end; i++) {
+                    // a line break is written in the style without its box
+                    palette.getWithoutBoxId(codeStyleResolver.getStyleId(tokens.getTokenType(i), highlightTextAttributes));
+                }
+            }
+            else if (!isUnhighlightedResolved) {
+                IElementType[] tokenTypes = request.getTokenTypes();
+                for (int i = 0; i < tokenTypes.length; i++) {
+                    palette.getWithoutBoxId(codeStyleResolver.getStyleId(tokenTypes[i], highlightTextAttributes));
                 }
+                isUnhighlightedResolved = true;
             }
+            start = end;
         }
-        Collections.sort(rangeHighlighters);
-        return rangeHighlighters;
     }
 
-    private static final Pattern LINE_PATTERN = Pattern.compile("\\n|\\r\\n|\\r");
+    private static void render(HtmlWriter htmlWriter, RenderContext context, ProgressIndicator indicator) throws IOException {
+        context.startPass();
 
-    private CodeStyle appendToBuffer(StringBuffer buffer, CodeStyle oldCodeStyle, CodeStyle newCodeStyle, StringBuffer text,
-                                     int whiteSpacePrefixCount)
-    {
-        String[] lines = LINE_PATTERN.split(text, -1);
-        int lineCount = lines.length;
-
-        for (int i = 0; i < lineCount; i++) {
-            String line = lines[i];
-            if (_isStartOfLine) {
-                if (_showLineNos) {
-                    ++_lineNo;
-                    oldCodeStyle = appendChunkToBuffer(buffer, oldCodeStyle, _lineNoCodeStyle, Utils.formatInt(_lineNo,
-                                                                                                               _lineNumberCharCount) + " ");
-                }
-                if (line.length() >= whiteSpacePrefixCount) {
-                    line = line.substring(whiteSpacePrefixCount);
-                }
-                _isStartOfLine = false;
+        ExportRequest request = context.getRequest();
+        CodeStyleResolver codeStyleResolver = context.getCodeStyleResolver();
+        CharSequence text = request.getText();
+        int startOffset = request.getStartOffset();
+        int endOffset = request.getEndOffset();
+        HighlightSegmenter highlightSegmenter = new HighlightSegmenter(request.getRangeHighlights());
+        highlightSegmenter.seek(startOffset);
+        TokenSource tokens = request.createTokenSource();
+
+        int tokenCount = 0;
+        int length = endOffset - startOffset;
+        IElementType tokenType;
+        while ((tokenType = tokens.getTokenType()) != null) {
+            int tokenStart = tokens.getTokenStart();
+            int tokenEnd = tokens.getTokenEnd();
+            if (tokenStart >= endOffset) {
+                break;
             }
-            if (_tabText != null) {
-                line = Utils.replaceAll(line, '\t', _tabText);
+            if (indicator != null && ++tokenCount % PROGRESS_INTERVAL == 0) {
+                indicator.checkCanceled();
+                if (length > 0) {
+                    // the first token may start before the range
+                    indicator.setFraction(Math.min(Math.max((double) (tokenStart - startOffset) / length, 0), 1));
+                }
             }
+            if (tokenEnd >= startOffset) {
+                tokenStart = Math.max(tokenStart, startOffset);
+                tokenEnd = Math.min(tokenEnd, endOffset);
 
-            if (line.length() > 0) {
-                oldCodeStyle = appendChunkToBuffer(buffer, oldCodeStyle, newCodeStyle, line);
-            }
-            if (i != lineCount - 1) {
-                CodeStyle newLineCodeStyle = oldCodeStyle == null ? null :
-                                             new CodeStyle(oldCodeStyle.getForegroundColor(), oldCodeStyle.getBackgroundColor(),
-                                                           oldCodeStyle.isBold(),
-                                                           oldCodeStyle.isItalic(), oldCodeStyle.getUnderlineColor(),
-                                                           oldCodeStyle.getStrikeThroughColor(),
-                                                           null);
-                oldCodeStyle = appendChunkToBuffer(buffer, oldCodeStyle, newLineCodeStyle, "\n");
-                _isStartOfLine = true;
+                // split the token wherever a range highlight starts or ends
+                int runStart = tokenStart;
+                while (runStart < tokenEnd) {
+                    highlightSegmenter.advanceTo(runStart);
+                    int runEnd = Math.min(tokenEnd, highlightSegmenter.getNextBoundary());
+
+                    int styleId = codeStyleResolver.getStyleId(tokenType, highlightSegmenter.getTextAttributes());
+                    writeRun(htmlWriter, context, styleId, text, runStart, runEnd);
+                    runStart = runEnd;
+                }
             }
+            tokens.advance();
         }
-        return oldCodeStyle;
     }
 
-    private CodeStyle appendChunkToBuffer(StringBuffer buffer, CodeStyle oldCodeStyle, CodeStyle newCodeStyle, String line) {
-        if (!Utils.equals(oldCodeStyle, newCodeStyle)) {
-            if (oldCodeStyle != null) {
-                String endHtmlString = oldCodeStyle.endHtml();
-                buffer.append(endHtmlString);
-            }
-            if (newCodeStyle != null) {
-                String startHtml = newCodeStyle.startHtml();
-                buffer.append(startHtml);
+    /**
+     * Works on offsets into the text, so the selection is never copied.
+     */
+    private static int getCommonWhiteSpacePrefixCount(CharSequence text, int startOffset, int endOffset) {
+        int whiteSpaceStart = -1;
+        int whiteSpaceLength = 0;
+
+        LineScanner lineScanner = new LineScanner();
+        lineScanner.reset(text, startOffset, endOffset);
+        while (lineScanner.nextLine()) {
+            int lineStart = lineScanner.getLineStart();
+            int lineEnd = lineScanner.getLineEnd();
+            int prefixEnd = getWhiteSpacePrefixEnd(text, lineStart, lineEnd);
+            if (prefixEnd < lineEnd) {
+                int prefixLength = prefixEnd - lineStart;
+                if (prefixLength == 0) {
+                    return 0;
+                }
+                if (whiteSpaceStart < 0) {
+                    whiteSpaceStart = lineStart;
+                    whiteSpaceLength = prefixLength;
+                }
+                else {
+                    int commonLength = Math.min(prefixLength, whiteSpaceLength);
+                    if (!regionMatches(text, whiteSpaceStart, lineStart, commonLength)) {
+                        return 0;
+                    }
+                    whiteSpaceLength = commonLength;
+                }
             }
         }
-        buffer.append(line);
-        return newCodeStyle;
+
+        return whiteSpaceLength;
     }
 
-    private CodeStyle getCodeStyle(CodeStyle defaultCodeStyle, SyntaxHighlighter syntaxHighlighter, EditorColorsScheme colorsScheme,
-                                   IElementType tokenType, int tokenStart,
-                                   List rangeHighlighters)
-    {
-        TextAttributesKey[] syntaxTextAttributeKeys = syntaxHighlighter.getTokenHighlights(tokenType);
-        Color foregroundColor = defaultCodeStyle.getForegroundColor();
-        Color backgroundColor = defaultCodeStyle.getBackgroundColor();
-        boolean isBold = defaultCodeStyle.isBold();
-        boolean isItalic = defaultCodeStyle.isItalic();
-        Color underlineColor = defaultCodeStyle.getUnderlineColor();
-        Color strikeThroughColor = defaultCodeStyle.getStrikeThroughColor();
-        Color boxColor = defaultCodeStyle.getBoxColor();
-        TextAttributes[] highlightTextAttributes = getTextAttributes(rangeHighlighters, tokenStart);
-        ArrayList textAttributes = new ArrayList(syntaxTextAttributeKeys.length + highlightTextAttributes.length);
-        for (int i = 0; i < syntaxTextAttributeKeys.length; i++) {
-            TextAttributesKey tokenHighlight = syntaxTextAttributeKeys[i];
-            TextAttributes attributes = colorsScheme.getAttributes(tokenHighlight);
-            textAttributes.add(attributes);
+    private static int getWhiteSpacePrefixEnd(CharSequence text, int lineStart, int lineEnd) {
+        int charIndex = lineStart;
+        while (lineEnd > charIndex && Character.isWhitespace(text.charAt(charIndex))) {
+            ++charIndex;
         }
-        textAttributes.addAll(Arrays.asList(highlightTextAttributes));
+        return charIndex;
+    }
 
-        for (int i = 0; i < textAttributes.size(); i++) {
-            TextAttributes attributes = (TextAttributes) textAttributes.get(i);
-            Color highlightForegroundColor = attributes.getForegroundColor();
-            if (highlightForegroundColor != null) {
-                foregroundColor = highlightForegroundColor;
-            }
-            Color highlightBackgroundColor = attributes.getBackgroundColor();
-            if (highlightBackgroundColor != null) {
-                backgroundColor = highlightBackgroundColor;
-            }
-            EffectType effectType = attributes.getEffectType();
-            Color attributeUnderlineColor =
-                    EffectType.LINE_UNDERSCORE == effectType || EffectType.WAVE_UNDERSCORE == effectType ? attributes.getEffectColor() :
-                    null;
-            if (attributeUnderlineColor != null) {
-                underlineColor = attributeUnderlineColor;
-            }
-            Color attributeStrikeThroughColor = EffectType.STRIKEOUT == effectType ? attributes.getEffectColor() : null;
-            if (attributeStrikeThroughColor != null) {
-                strikeThroughColor = attributeStrikeThroughColor;
-            }
-            Color attributeBoxColor = EffectType.BOXED == effectType ? attributes.getEffectColor() : null;
-            if (attributeBoxColor != null) {
-                boxColor = attributeBoxColor;
+    private static boolean regionMatches(CharSequence text, int offset1, int offset2, int length) {
+        for (int i = 0; i < length; ++i) {
+            if (text.charAt(offset1 + i) != text.charAt(offset2 + i)) {
+                return false;
             }
-
-            int fontType = attributes.getFontType();
-            isBold |= (fontType & Font.BOLD) != 0;
-            isItalic |= (fontType & Font.ITALIC) != 0;
         }
-
-        return new CodeStyle(foregroundColor, backgroundColor, isBold, isItalic, underlineColor, strikeThroughColor, boxColor);
+        return true;
     }
 
-    private TextAttributes[] getTextAttributes(List rangeHighlighters, int offset) {
-        List textAttributes = new ArrayList();
-        for (int i = _highlightStartIndex; i < rangeHighlighters.size(); i++) {
-            RangeHighlight rangeHighlight = (RangeHighlight) rangeHighlighters.get(i);
-            int startOffset = rangeHighlight.getStartOffset();
-            int endOffset = rangeHighlight.getEndOffset();
-            if (endOffset < offset) {
-                ++_highlightStartIndex;
+    /**
+     * Writes the text between start and end line by line, working on offsets into the text, so nothing is copied.
+     */
+    private static void writeRun(HtmlWriter htmlWriter, RenderContext context, int styleId, CharSequence text, int start, int end)
+            throws IOException
+    {
+        ExportRequest request = context.getRequest();
+        int whiteSpacePrefixCount = context.getCommonWhiteSpacePrefixCount();
+        LineScanner lineScanner = context.getLineScanner();
+        lineScanner.reset(text, start, end);
+        while (lineScanner.nextLine()) {
+            int lineStart = lineScanner.getLineStart();
+            int lineEnd = lineScanner.getLineEnd();
+            if (context.isStartOfLine()) {
+                if (request.isShowLineNos()) {
+                    htmlWriter.writeLineNo(context.getLineNoStyleId(), context.nextLineNo(), request.getLineNumberCharCount());
+                }
+                if (lineEnd - lineStart >= whiteSpacePrefixCount) {
+                    lineStart += whiteSpacePrefixCount;
+                }
+                context.setStartOfLine(false);
             }
-            if (startOffset <= offset && offset < endOffset) {
-                textAttributes.add(rangeHighlight.getTextAttributes());
+            if (lineEnd > lineStart) {
+                htmlWriter.write(styleId, text, lineStart, lineEnd);
             }
-            if (startOffset > offset) {
-                break;
+            if (lineScanner.isTerminated()) {
+                htmlWriter.writeLineBreak();
+                context.setStartOfLine(true);
             }
         }
-
-        return (TextAttributes[]) textAttributes.toArray(new TextAttributes[textAttributes.size()]);
     }
 }
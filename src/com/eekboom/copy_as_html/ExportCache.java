@@ -0,0 +1,99 @@
+package com.eekboom.copy_as_html;
+
+import com.intellij.openapi.editor.Document;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HTML of the most recent exports, so copying the same unchanged range again with the same settings needs no rendering.
+ * The mime types are not part of the key, they don't change the HTML. The HTML is held softly and only for ranges up to
+ * {@link #MAX_CACHED_LENGTH} chars.
+ */
+class ExportCache {
+    static final int MAX_CACHED_LENGTH = 256 * 1024;
+    private static final int MAX_ENTRIES = 16;
+
+    private static final Map _htmlByKey = new LinkedHashMap(MAX_ENTRIES, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private ExportCache() {
+    }
+
+    /**
+     * @return the HTML as UTF-8, null if not cached
+     */
+    static synchronized byte[] get(Key key) {
+        Reference reference = (Reference) _htmlByKey.get(key);
+        if (reference == null) {
+            return null;
+        }
+        byte[] html = (byte[]) reference.get();
+        if (html == null) {
+            _htmlByKey.remove(key);
+        }
+        return html;
+    }
+
+    static synchronized void put(Key key, byte[] html) {
+        _htmlByKey.put(key, new SoftReference(html));
+    }
+
+    /**
+     * Needed when colors change, schemes are compared by name only.
+     */
+    static synchronized void clear() {
+        _htmlByKey.clear();
+    }
+
+    /**
+     * Identifies an export by the document and its modification stamp, the range and all settings that affect the HTML.
+     * Doesn't keep the document from being collected.
+     */
+    static class Key {
+        private final Reference _document;
+        private final int _documentHashCode;
+        private final long _modificationStamp;
+        private final int _startOffset;
+        private final int _endOffset;
+        private final List _settings;
+
+        /**
+         * @param settings the name of the color scheme, the syntax highlighter, the highlights and the configuration values that
+         * affect the HTML, compared by equals; must not refer to an editor or a project, the cache is static
+         */
+        public Key(Document document, int startOffset, int endOffset, List settings) {
+            _document = new WeakReference(document);
+            _documentHashCode = System.identityHashCode(document);
+            _modificationStamp = document.getModificationStamp();
+            _startOffset = startOffset;
+            _endOffset = endOffset;
+            _settings = settings;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            Object document = _document.get();
+            return document != null && document == key._document.get() && _modificationStamp == key._modificationStamp
+                   && _startOffset == key._startOffset && _endOffset == key._endOffset && _settings.equals(key._settings);
+        }
+
+        public int hashCode() {
+            int hashCode = _documentHashCode;
+            hashCode = 31 * hashCode + (int) (_modificationStamp ^ (_modificationStamp >>> 32));
+            hashCode = 31 * hashCode + _startOffset;
+            hashCode = 31 * hashCode + _endOffset;
+            return 31 * hashCode + _settings.hashCode();
+        }
+    }
+}
@@ -0,0 +1,656 @@
+package com.eekboom.copy_as_html;
+
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.HighlighterColors;
+import com.intellij.openapi.editor.colors.EditorColors;
+import com.intellij.openapi.editor.colors.EditorColorsScheme;
+import com.intellij.openapi.editor.ex.EditorEx;
+import com.intellij.openapi.editor.highlighter.EditorHighlighter;
+import com.intellij.openapi.editor.markup.*;
+import com.intellij.openapi.fileTypes.SyntaxHighlighter;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.Processor;
+
+import java.awt.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything an export needs from the editor and the configuration, captured at once in a read action, so the export can be
+ * rendered outside of it, e.g. in a background task, while the document is edited.
+ * Nothing of the editor is kept once the tokens are known, their styles are resolved right away: a request may be kept on the
+ * clipboard long after its editor has been closed.
+ */
+class ExportRequest {
+    private static Method _processOverlappingMethod;
+    private static Method _getImmutableCharSequenceMethod;
+
+    static {
+        try {
+            Class markupModelExClass = Class.forName("com.intellij.openapi.editor.ex.MarkupModelEx", true,
+                                                     ExportRequest.class.getClassLoader());
+            _processOverlappingMethod = markupModelExClass.getMethod("processRangeHighlightersOverlappingWith",
+                                                                     new Class[]{Integer.TYPE, Integer.TYPE, Processor.class});
+        }
+        catch (ClassNotFoundException e) {
+            // fine, older Idea version, fall back to iterating all highlighters
+            _processOverlappingMethod = null;
+        }
+        catch (NoSuchMethodException e) {
+            _processOverlappingMethod = null;
+        }
+        try {
+            _getImmutableCharSequenceMethod = Document.class.getMethod("getImmutableCharSequence", new Class[0]);
+        }
+        catch (NoSuchMethodException e) {
+            // fine, older Idea version, fall back to copying the text
+            _getImmutableCharSequenceMethod = null;
+        }
+    }
+
+    private final CharSequence _text;
+    /**
+     * The offset of the text in the document, all other offsets of the request are relative to the text
+     */
+    private final int _textOffset;
+    private final int _startOffset;
+    private final int _endOffset;
+    /**
+     * Null until the fallback lexer has lexed the range, see {@link #lexTokens()}
+     */
+    private TokenSnapshot _tokens;
+    private CodeStyle[] _tokenCodeStyles;
+    private IElementType[] _tokenTypes;
+    /**
+     * The fallback lexer and what is needed to resolve the styles of its tokens, only held until the range has been lexed
+     */
+    private Lexer _lexer;
+    private LexerCheckpoints _lexerCheckpoints;
+    private int _lexerStartOffset;
+    private int _lexerEndOffset;
+    private TokenStyleCache _tokenStyles;
+    private EditorColorsScheme _colorsScheme;
+    private final List _syntaxHighlighterKey;
+    private final List _rangeHighlights;
+    private final CodeStyle _defaultCodeStyle;
+    private final CodeStyle _lineNoCodeStyle;
+    private final boolean _showLineNos;
+    private final int _firstLineNo;
+    private final int _lineNumberCharCount;
+    private final boolean _unindent;
+    private final Integer _fontSize;
+    private final String _tabText;
+    private final boolean _addBorder;
+    private final boolean _includePadding;
+    private final int _padding;
+    private final boolean _useCssClasses;
+    private final boolean _combineSpans;
+    private final int _mimeTypes;
+    private final ExportCache.Key _cacheKey;
+
+    /**
+     * Must be called in a read action.
+     */
+    public ExportRequest(Project project, Editor editor, PsiFile psiFile, TextRange textRange) {
+        // Look at EditorColors, HighlighterColors and CodeInsightColors for color definitions
+        EditorColorsScheme colorsScheme = editor.getColorsScheme();
+        _defaultCodeStyle = getDefaultCodeStyle(editor);
+
+        Document document = editor.getDocument();
+        Language language = psiFile.getLanguage();
+        VirtualFile virtualFile = psiFile.getVirtualFile();
+        SyntaxHighlighter syntaxHighlighter = getSyntaxHighlighter(language, project, virtualFile);
+        Object fileType = virtualFile == null ? null : virtualFile.getFileType();
+        _syntaxHighlighterKey = Arrays.asList(new Object[]{syntaxHighlighter.getClass(), language, fileType});
+
+        // Offsets of the selection, the editor highlighter and the markup model all refer to the document, not to the PSI.
+        CharSequence chars = document.getCharsSequence();
+        int startOffset = textRange.getStartOffset();
+        int endOffset = textRange.getEndOffset();
+        if (endOffset > 0 && chars.charAt(endOffset - 1) == '\n') {
+            --endOffset;
+        }
+
+        // The editor's highlighter already holds the tokens of the whole document, but only as long as the document is not
+        // changed, so keep the tokens of the range. Without such a highlighter the text is lexed later, starting at the
+        // nearest known checkpoint before the range.
+        EditorHighlighter highlighter = editor instanceof EditorEx ? ((EditorEx) editor).getHighlighter() : null;
+        int windowStart = startOffset;
+        int windowEnd = endOffset;
+        LexerCheckpoints lexerCheckpoints = null;
+        if (highlighter == null) {
+            _lexer = syntaxHighlighter.getHighlightingLexer();
+            lexerCheckpoints = LexerCheckpoints.getInstance(document, _lexer);
+            // up to the end of the last line, so the last token of the range is not cut off
+            windowStart = lexerCheckpoints.getCheckpoint(startOffset);
+            windowEnd = document.getLineEndOffset(document.getLineNumber(endOffset));
+        }
+        // A range small enough to be rendered when pasted is always copied, so a request kept on the clipboard doesn't keep the
+        // text of the whole document.
+        CharSequence immutableText = null;
+        if (endOffset - startOffset > CopyAsHtmlAction.LAZY_RENDER_MAX_LENGTH) {
+            immutableText = getImmutableText(document);
+        }
+        if (immutableText != null) {
+            _text = immutableText;
+            _textOffset = 0;
+        }
+        else {
+            // Copying the whole document on each export is too slow for large files, copy only what is needed
+            _text = chars.subSequence(windowStart, windowEnd).toString();
+            _textOffset = windowStart;
+        }
+        _startOffset = startOffset - _textOffset;
+        _endOffset = endOffset - _textOffset;
+        TokenStyleCache tokenStyles = TokenStyleCache.getInstance(colorsScheme, syntaxHighlighter, _syntaxHighlighterKey,
+                                                                  _defaultCodeStyle);
+        if (highlighter != null) {
+            _tokens = new TokenSnapshot(new HighlighterTokenSource(highlighter.createIterator(startOffset)), endOffset, _textOffset);
+            resolveTokenCodeStyles(tokenStyles, colorsScheme);
+        }
+        else {
+            _lexerCheckpoints = lexerCheckpoints;
+            _lexerStartOffset = windowStart - _textOffset;
+            _lexerEndOffset = windowEnd - _textOffset;
+            _tokenStyles = tokenStyles;
+            _colorsScheme = colorsScheme;
+        }
+        _rangeHighlights = getRangeHighlighters(editor, startOffset, endOffset);
+
+        Configuration configuration = Configuration.getInstance();
+
+        int startLineNo = document.getLineNumber(textRange.getStartOffset()) + 1;
+        // an empty document has no char before the end
+        int endLineNo = document.getLineNumber(Math.max(textRange.getEndOffset() - 1, 0)) + 1;
+        int maxLineNo = configuration.getLineNosStartAt1() ? (endLineNo - startLineNo + 1) : endLineNo;
+        _lineNumberCharCount = (int) Math.ceil(Math.log(maxLineNo + 1) / Math.log(10));
+        Color lineNosColor = colorsScheme.getColor(EditorColors.LINE_NUMBERS_COLOR);
+        Color lineNosBackgroundColor = colorsScheme.getColor(EditorColors.LEFT_GUTTER_BACKGROUND);
+        _lineNoCodeStyle = new CodeStyle(lineNosColor, lineNosBackgroundColor, false, false, null, null, null);
+        _firstLineNo = configuration.getLineNosStartAt1() ? 0 : startLineNo;
+        String lineNoType = configuration.getLineNoType();
+        if (Configuration.LINE_NO_FOLLOW.equals(lineNoType)) {
+            _showLineNos = editor.getSettings().isLineNumbersShown();
+        }
+        else {
+            _showLineNos = Configuration.LINE_NO_ALWAYS.equals(lineNoType);
+        }
+
+        _unindent = configuration.isUnindent();
+
+        String fontSizeType = configuration.getFontSizeType();
+        if (Configuration.FONT_SIZE_FOLLOW.equals(fontSizeType)) {
+            _fontSize = Integer.valueOf(colorsScheme.getEditorFontSize());
+        }
+        else if(Configuration.FONT_SIZE_FIXED.equals(fontSizeType)) {
+            _fontSize = Integer.valueOf(configuration.getFontSize());
+        }
+        else {
+            _fontSize = null;
+        }
+        _tabText = configuration.isTabsToSpaces() ? Utils.repeat(' ', configuration.getTabSize()) : null;
+
+        _addBorder = configuration.getAddBorder();
+        _includePadding = configuration.isIncludePadding();
+        _padding = configuration.getPadding();
+        _useCssClasses = configuration.isUseCssClasses();
+        _combineSpans = configuration.isCombineSpans();
+        _mimeTypes = configuration.getMimeTypes();
+
+        // The scheme of the editor refers back to the editor, so only the name of the scheme goes into the static cache.
+        // A scheme is not changed without the caches being cleared.
+        Object[] settings = new Object[]{colorsScheme.getName(), _syntaxHighlighterKey, _defaultCodeStyle, _lineNoCodeStyle,
+                                         getHighlightsKey(), Boolean.valueOf(_showLineNos), Integer.valueOf(_firstLineNo),
+                                         Integer.valueOf(_lineNumberCharCount), Boolean.valueOf(_unindent), _fontSize, _tabText,
+                                         Boolean.valueOf(_addBorder), Boolean.valueOf(_includePadding), Integer.valueOf(_padding),
+                                         Boolean.valueOf(_useCssClasses), Boolean.valueOf(_combineSpans)};
+        _cacheKey = new ExportCache.Key(document, startOffset, endOffset, Arrays.asList(settings));
+    }
+
+    /**
+     * A request for a text without an editor, e.g. for a benchmark. The tokens come with the styles of their types, the settings
+     * are fixed: line numbers are shown, tabs are replaced by four spaces and nothing is unindented. Its HTML is never cached.
+     * @param tokens the tokens of the whole text
+     * @param tokenCodeStyles the code style of each token type by its index
+     * @param rangeHighlights the highlights of the text, sorted by start offset
+     */
+    ExportRequest(String text, TokenSource tokens, CodeStyle[] tokenCodeStyles, List rangeHighlights, CodeStyle defaultCodeStyle,
+                  CodeStyle lineNoCodeStyle, boolean useCssClasses)
+    {
+        int endOffset = text.length();
+        if (endOffset > 0 && text.charAt(endOffset - 1) == '\n') {
+            --endOffset;
+        }
+        int lineCount = 1;
+        for (int i = 0; i < endOffset; i++) {
+            if (text.charAt(i) == '\n') {
+                ++lineCount;
+            }
+        }
+        _text = text;
+        _textOffset = 0;
+        _startOffset = 0;
+        _endOffset = endOffset;
+        _tokens = new TokenSnapshot(tokens, endOffset, 0);
+        _tokenTypes = collectTokenTypes();
+        _tokenCodeStyles = tokenCodeStyles;
+        _syntaxHighlighterKey = Collections.EMPTY_LIST;
+        _rangeHighlights = rangeHighlights;
+        _defaultCodeStyle = defaultCodeStyle;
+        _lineNoCodeStyle = lineNoCodeStyle;
+        _showLineNos = true;
+        _firstLineNo = 0;
+        _lineNumberCharCount = (int) Math.ceil(Math.log(lineCount + 1) / Math.log(10));
+        _unindent = false;
+        _fontSize = null;
+        _tabText = Utils.repeat(' ', 4);
+        _addBorder = false;
+        _includePadding = false;
+        _padding = 0;
+        _useCssClasses = useCssClasses;
+        _combineSpans = false;
+        _mimeTypes = ClipboardHelper.TYPE_HTML;
+        _cacheKey = null;
+    }
+
+    /**
+     * Lexes the range with the fallback lexer, unless the tokens have been taken from the editor's highlighter or lexed before.
+     * Takes as long as the range is large, so it is done where the request is rendered, e.g. in a background task, on the text
+     * captured with the request. Only a request that waits on the clipboard to be rendered needs its tokens up front, so it
+     * keeps nothing of the editor.
+     */
+    public synchronized void lexTokens() {
+        if (_tokens != null) {
+            return;
+        }
+        _lexer.start(_text, _lexerStartOffset, _lexerEndOffset, LexerCheckpoints.INITIAL_STATE);
+        TokenSource tokenSource = new LexerTokenSource(_lexer, _lexerCheckpoints, _textOffset);
+        while (tokenSource.getTokenType() != null && tokenSource.getTokenEnd() <= _startOffset) {
+            tokenSource.advance();
+        }
+        _tokens = new TokenSnapshot(tokenSource, _endOffset, 0);
+        resolveTokenCodeStyles(_tokenStyles, _colorsScheme);
+        _lexer = null;
+        _lexerCheckpoints = null;
+        _tokenStyles = null;
+        _colorsScheme = null;
+    }
+
+    /**
+     * Resolves the code style of each token type of the range while the scheme of the editor is at hand.
+     */
+    private void resolveTokenCodeStyles(TokenStyleCache tokenStyles, EditorColorsScheme colorsScheme) {
+        _tokenTypes = collectTokenTypes();
+        for (int i = 0; i < _tokenTypes.length; i++) {
+            tokenStyles.getCodeStyle(_tokenTypes[i], colorsScheme);
+        }
+        // resolving only ever adds styles, so the styles of the range are all in the current array
+        _tokenCodeStyles = tokenStyles.getCodeStyles();
+    }
+
+    /**
+     * @return the distinct types of the tokens in the range
+     */
+    private IElementType[] collectTokenTypes() {
+        List tokenTypes = new ArrayList();
+        BitSet isCollected = new BitSet();
+        TokenSource tokens = _tokens.createTokenSource();
+        IElementType tokenType;
+        while ((tokenType = tokens.getTokenType()) != null) {
+            if (tokens.getTokenEnd() > _startOffset && !isCollected.get(tokenType.getIndex())) {
+                isCollected.set(tokenType.getIndex());
+                tokenTypes.add(tokenType);
+            }
+            tokens.advance();
+        }
+        return (IElementType[]) tokenTypes.toArray(new IElementType[tokenTypes.size()]);
+    }
+
+    /**
+     * Highlights may change without the document being changed, e.g. when the analysis of the file completes.
+     * @return the bounds of the highlights within the range as document offsets, each followed by its attributes, to be compared
+     * by equals
+     */
+    private List getHighlightsKey() {
+        List key = new ArrayList(3 * _rangeHighlights.size());
+        for (int i = 0; i < _rangeHighlights.size(); i++) {
+            RangeHighlight rangeHighlight = (RangeHighlight) _rangeHighlights.get(i);
+            key.add(Integer.valueOf(_textOffset + Math.max(rangeHighlight.getStartOffset(), _startOffset)));
+            key.add(Integer.valueOf(_textOffset + Math.min(rangeHighlight.getEndOffset(), _endOffset)));
+            key.add(rangeHighlight.getTextAttributes());
+        }
+        return key;
+    }
+
+    /**
+     * @return the text of the whole document without copying it, null if the document has no immutable text
+     */
+    private static CharSequence getImmutableText(Document document) {
+        if (_getImmutableCharSequenceMethod != null) {
+            try {
+                return (CharSequence) _getImmutableCharSequenceMethod.invoke(document, new Object[0]);
+            }
+            catch (IllegalAccessException e) {
+                // fall back to copying
+            }
+            catch (InvocationTargetException e) {
+                // fall back to copying
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a new source of the tokens from the start offset on, for each pass over the range
+     */
+    public synchronized TokenSource createTokenSource() {
+        lexTokens();
+        return _tokens.createTokenSource();
+    }
+
+    /**
+     * @return the tokens of the range, to be looked up by offset
+     */
+    public synchronized TokenSnapshot getTokens() {
+        lexTokens();
+        return _tokens;
+    }
+
+    /**
+     * @return the distinct types of the tokens in the range
+     */
+    public synchronized IElementType[] getTokenTypes() {
+        lexTokens();
+        return _tokenTypes;
+    }
+
+    /**
+     * @return the whole text of the document for a large range, otherwise a copy of the range
+     */
+    public CharSequence getText() {
+        return _text;
+    }
+
+    public int getStartOffset() {
+        return _startOffset;
+    }
+
+    /**
+     * @return the end of the range, without a trailing line break
+     */
+    public int getEndOffset() {
+        return _endOffset;
+    }
+
+    /**
+     * @return the class of the syntax highlighter with the language and file type it has been created for
+     */
+    public List getSyntaxHighlighterKey() {
+        return _syntaxHighlighterKey;
+    }
+
+    /**
+     * @return the RangeHighlights overlapping the range, sorted by start offset
+     */
+    public List getRangeHighlights() {
+        return _rangeHighlights;
+    }
+
+    /**
+     * @return the code style of each token type of the range by the index of the token type, before range highlights are applied
+     */
+    public synchronized CodeStyle[] getTokenCodeStyles() {
+        lexTokens();
+        return _tokenCodeStyles;
+    }
+
+    public CodeStyle getDefaultCodeStyle() {
+        return _defaultCodeStyle;
+    }
+
+    public CodeStyle getLineNoCodeStyle() {
+        return _lineNoCodeStyle;
+    }
+
+    public boolean isShowLineNos() {
+        return _showLineNos;
+    }
+
+    /**
+     * @return the number before the first line number
+     */
+    public int getFirstLineNo() {
+        return _firstLineNo;
+    }
+
+    public int getLineNumberCharCount() {
+        return _lineNumberCharCount;
+    }
+
+    public boolean isUnindent() {
+        return _unindent;
+    }
+
+    /**
+     * @return the font size in pt, null if not set
+     */
+    public Integer getFontSize() {
+        return _fontSize;
+    }
+
+    /**
+     * @return the spaces to replace a tab with, null to keep tabs
+     */
+    public String getTabText() {
+        return _tabText;
+    }
+
+    public boolean isAddBorder() {
+        return _addBorder;
+    }
+
+    public boolean isIncludePadding() {
+        return _includePadding;
+    }
+
+    public int getPadding() {
+        return _padding;
+    }
+
+    public boolean isUseCssClasses() {
+        return _useCssClasses;
+    }
+
+    public boolean isCombineSpans() {
+        return _combineSpans;
+    }
+
+    public int getMimeTypes() {
+        return _mimeTypes;
+    }
+
+    /**
+     * @return identifies the HTML of this request, regardless of the mime types
+     */
+    public ExportCache.Key getCacheKey() {
+        return _cacheKey;
+    }
+
+    private CodeStyle getDefaultCodeStyle(Editor editor) {
+        EditorColorsScheme colorsScheme = editor.getColorsScheme();
+        Color backgroundColor = getBackgroundColor(editor);
+        Color foregroundColor = getForegroundColor(editor);
+
+        TextAttributes textAttributes = colorsScheme.getAttributes(HighlighterColors.TEXT);
+        int fontType = textAttributes.getFontType();
+
+        boolean isBold = (fontType & Font.BOLD) != 0;
+        boolean isItalic = (fontType & Font.ITALIC) != 0;
+        EffectType effectType = textAttributes.getEffectType();
+        Color underlineColor =
+                EffectType.LINE_UNDERSCORE == effectType || EffectType.WAVE_UNDERSCORE == effectType ? textAttributes.getEffectColor() :
+                null;
+        Color strikeThroughColor = EffectType.STRIKEOUT == effectType ? textAttributes.getEffectColor() : null;
+        Color boxColor = EffectType.BOXED == effectType ? textAttributes.getEffectColor() : null;
+        CodeStyle defaultCodeStyle = new CodeStyle(foregroundColor, backgroundColor, isBold, isItalic, underlineColor, strikeThroughColor,
+                                                   boxColor);
+        return defaultCodeStyle;
+    }
+
+    private Color getForegroundColor(Editor editor) {
+        EditorColorsScheme colorsScheme = editor.getColorsScheme();
+        TextAttributes textAttributes = colorsScheme.getAttributes(HighlighterColors.TEXT);
+        Color foregroundColor = textAttributes.getForegroundColor();
+        return foregroundColor;
+    }
+
+    private Color getBackgroundColor(Editor editor) {
+        Document document = editor.getDocument();
+        EditorColorsScheme colorsScheme = editor.getColorsScheme();
+        TextAttributes textAttributes = colorsScheme.getAttributes(HighlighterColors.TEXT);
+        boolean isWritable = document.isWritable();
+        Color backgroundColor;
+        if (isWritable) {
+            backgroundColor = textAttributes.getBackgroundColor();
+        }
+        else {
+            backgroundColor = colorsScheme.getColor(EditorColors.READONLY_BACKGROUND_COLOR);
+        }
+        if (backgroundColor == null) {
+            backgroundColor = Color.WHITE;
+        }
+        return backgroundColor;
+    }
+
+    /**
+     * The API to get a SyntaxHighlighter for a PsiFile changed form Irida (Idea 5.x) to Demetra (Idea 6.x) and then again to Diana (Idea
+     * 8.x). Handle all of the ways via reflection.
+     */
+    private static SyntaxHighlighter getSyntaxHighlighter(Language language, Project project, VirtualFile virtualFile) {
+        SyntaxHighlighter syntaxHighlighter;
+        try {
+            Class shf = Class.forName("com.intellij.openapi.fileTypes.SyntaxHighlighterFactory", true,
+                                      ExportRequest.class.getClassLoader());
+            syntaxHighlighter = (SyntaxHighlighter) reflect("Can't get SyntaxHighlighter", shf, "getSyntaxHighlighter", null,
+                                                            new Class[]{Language.class, Project.class, VirtualFile.class},
+                                                            new Object[]{language, project, virtualFile});
+        }
+        catch (Exception noIdea8) {
+            try {
+                syntaxHighlighter = (SyntaxHighlighter) reflect("Can't get SyntaxHighlighter", Language.class, "getSyntaxHighlighter",
+                                                                language,
+                                                                new Class[]{Project.class, VirtualFile.class},
+                                                                new Object[]{project, virtualFile});
+            }
+            catch (RuntimeException ignore) {
+                syntaxHighlighter = (SyntaxHighlighter) reflect("Can't get SyntaxHighlighter", Language.class, "getSyntaxHighlighter",
+                                                                language,
+                                                                new Class[]{Project.class}, new Object[]{project});
+            }
+        }
+
+        return syntaxHighlighter;
+    }
+
+    private static Object reflect(String errorMessage, Class clazz, String methodName, Object object, Class[] parameterClasses,
+                                  Object[] args)
+    {
+        try {
+            Method method = clazz.getMethod(methodName, parameterClasses);
+            Object result = method.invoke(object, args);
+            return result;
+        }
+        catch (NoSuchMethodException e) {
+            throw new RuntimeException(errorMessage, e);
+        }
+        catch (InvocationTargetException e) {
+            throw new RuntimeException(errorMessage, e);
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException(errorMessage, e);
+        }
+    }
+
+    /**
+     * Only collects the highlighters overlapping the exported range, given by document offsets. The RangeHighlights are relative to
+     * the text. Uses the range query of the markup model where available
+     * (MarkupModelEx in Idea 11 and later) and falls back to filtering all highlighters.
+     */
+    private List getRangeHighlighters(Editor editor, final int startOffset, final int endOffset) {
+        MarkupModel documentMarkupModel = editor.getMarkupModel();
+        final List rangeHighlighters = new ArrayList();
+        Configuration configuration = Configuration.getInstance();
+        final boolean includeWarningHighlights = configuration.getIncludeWarningHighlights();
+        Processor processor = new Processor() {
+            public boolean process(Object object) {
+                RangeHighlighter highlighter = (RangeHighlighter) object;
+                if (highlighter.getStartOffset() < endOffset && highlighter.getEndOffset() > startOffset) {
+                    addRangeHighlight(rangeHighlighters, highlighter, includeWarningHighlights, _textOffset);
+                }
+                return true;
+            }
+        };
+        if (!processOverlappingHighlighters(documentMarkupModel, startOffset, endOffset, processor)) {
+            // a query that failed may have processed some of the highlighters already
+            rangeHighlighters.clear();
+            RangeHighlighter[] highlighters = documentMarkupModel.getAllHighlighters();
+            for (int i = 0; i < highlighters.length; i++) {
+                processor.process(highlighters[i]);
+            }
+        }
+        Collections.sort(rangeHighlighters);
+        return rangeHighlighters;
+    }
+
+    private static void addRangeHighlight(List rangeHighlighters, RangeHighlighter highlighter, boolean includeWarningHighlights,
+                                          int textOffset)
+    {
+        int layer = highlighter.getLayer();
+        if (layer == HighlighterLayer.SYNTAX || layer == HighlighterLayer.ADDITIONAL_SYNTAX
+            || includeWarningHighlights && (layer == HighlighterLayer.WARNING || layer == HighlighterLayer.ERROR))
+        {
+            int highlighterStartOffset = Math.max(highlighter.getStartOffset() - textOffset, 0);
+            int highlighterEndOffset = highlighter.getEndOffset() - textOffset;
+            TextAttributes textAttributes = highlighter.getTextAttributes();
+            // Don't know why textAttributes can be null, but happen e.g. in class java.lang.String
+            if (textAttributes != null) {
+                RangeHighlight rangeHighlight = new RangeHighlight(highlighterStartOffset, highlighterEndOffset, textAttributes);
+                rangeHighlighters.add(rangeHighlight);
+            }
+        }
+    }
+
+    /**
+     * @return false if the markup model has no range query or the query failed, some highlighters may have been processed anyway
+     */
+    private static boolean processOverlappingHighlighters(MarkupModel markupModel, int startOffset, int endOffset,
+                                                          Processor processor)
+    {
+        if (_processOverlappingMethod == null || !_processOverlappingMethod.getDeclaringClass().isInstance(markupModel)) {
+            return false;
+        }
+        try {
+            _processOverlappingMethod.invoke(markupModel, new Object[]{Integer.valueOf(startOffset), Integer.valueOf(endOffset),
+                                                                       processor});
+            return true;
+        }
+        catch (IllegalAccessException e) {
+            return false;
+        }
+        catch (InvocationTargetException e) {
+            return false;
+        }
+    }
+}
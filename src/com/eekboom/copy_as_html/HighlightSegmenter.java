@@ -0,0 +1,244 @@
+package com.eekboom.copy_as_html;
+
+import com.intellij.openapi.editor.markup.TextAttributes;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sweeps over the start and end events of range highlights in offset order and keeps track of the highlights active at the
+ * current offset. The export walks the tokens and splits each token wherever a highlight starts or ends, so that a highlight
+ * covering only part of a token gets exactly that part. Sweeping over all tokens costs O(n + m log m) for n tokens and m highlights.
+ * Each distinct set of active attributes is handed out as the same array, so a sweep allocates only for the sets it has not seen.
+ */
+class HighlightSegmenter {
+    private static final TextAttributes[] NO_TEXT_ATTRIBUTES = new TextAttributes[0];
+
+    private final RangeHighlight[] _highlights;
+    /**
+     * Indices into _highlights, sorted by end offset
+     */
+    private final int[] _byEnd;
+
+    private int _nextStartIndex;
+    private int _nextEndIndex;
+    /**
+     * Indices of the active highlights in ascending order, i.e. ordered by start offset
+     */
+    private int[] _active = new int[8];
+    private int _activeCount;
+    private TextAttributes[] _activeTextAttributes = NO_TEXT_ATTRIBUTES;
+    /**
+     * The arrays handed out so far by the identities of their attributes, with open addressing
+     */
+    private TextAttributes[][] _textAttributeSets = new TextAttributes[16][];
+    private int _textAttributeSetCount;
+
+    /**
+     * @param sortedHighlights the highlights sorted by start offset, later ones override earlier ones
+     */
+    public HighlightSegmenter(List sortedHighlights) {
+        int count = 0;
+        RangeHighlight[] highlights = new RangeHighlight[sortedHighlights.size()];
+        for (int i = 0; i < highlights.length; i++) {
+            RangeHighlight highlight = (RangeHighlight) sortedHighlights.get(i);
+            // empty highlights never cover an offset
+            if (highlight.getStartOffset() < highlight.getEndOffset()) {
+                highlights[count++] = highlight;
+            }
+        }
+        _highlights = new RangeHighlight[count];
+        System.arraycopy(highlights, 0, _highlights, 0, count);
+
+        long[] endKeys = new long[count];
+        for (int i = 0; i < count; i++) {
+            endKeys[i] = ((long) _highlights[i].getEndOffset() << 32) | i;
+        }
+        Arrays.sort(endKeys);
+        _byEnd = new int[count];
+        for (int i = 0; i < count; i++) {
+            _byEnd[i] = (int) endKeys[i];
+        }
+    }
+
+    /**
+     * Positions the sweep at any offset, afterwards it may only move forward.
+     */
+    public void seek(int offset) {
+        int low = 0;
+        int high = _highlights.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (_highlights[middle].getStartOffset() <= offset) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        _nextStartIndex = low;
+
+        // The sweep seeks once per pass, so a single scan over the highlights started so far is enough to find the covering ones
+        _activeCount = 0;
+        _activeTextAttributes = null;
+        for (int i = 0; i < _nextStartIndex; i++) {
+            if (_highlights[i].getEndOffset() > offset) {
+                activate(i);
+            }
+        }
+
+        low = 0;
+        high = _byEnd.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (_highlights[_byEnd[middle]].getEndOffset() <= offset) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        _nextEndIndex = low;
+    }
+
+    /**
+     * Processes all start and end events up to and including the offset.
+     */
+    public void advanceTo(int offset) {
+        while (true) {
+            int nextStart = getNextStart();
+            int nextEnd = getNextEnd();
+            if (nextStart <= nextEnd) {
+                if (nextStart > offset) {
+                    return;
+                }
+                activate(_nextStartIndex++);
+            }
+            else {
+                if (nextEnd > offset) {
+                    return;
+                }
+                deactivate(_byEnd[_nextEndIndex++]);
+            }
+        }
+    }
+
+    /**
+     * @return the offset of the next start or end event after the current offset, Integer.MAX_VALUE if there is none
+     */
+    public int getNextBoundary() {
+        return Math.min(getNextStart(), getNextEnd());
+    }
+
+    /**
+     * @return the text attributes of the active highlights ordered by start offset, the same array for the same attributes, must
+     * not be modified
+     */
+    public TextAttributes[] getTextAttributes() {
+        if (_activeTextAttributes == null) {
+            _activeTextAttributes = internActiveTextAttributes();
+        }
+        return _activeTextAttributes;
+    }
+
+    private TextAttributes[] internActiveTextAttributes() {
+        if (_activeCount == 0) {
+            return NO_TEXT_ATTRIBUTES;
+        }
+        int hashCode = 0;
+        for (int i = 0; i < _activeCount; i++) {
+            hashCode = 31 * hashCode + System.identityHashCode(getActiveTextAttributes(i));
+        }
+        int mask = _textAttributeSets.length - 1;
+        int slot = (hashCode ^ (hashCode >>> 16)) & mask;
+        while (_textAttributeSets[slot] != null) {
+            if (isActive(_textAttributeSets[slot])) {
+                return _textAttributeSets[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        TextAttributes[] textAttributes = new TextAttributes[_activeCount];
+        for (int i = 0; i < _activeCount; i++) {
+            textAttributes[i] = getActiveTextAttributes(i);
+        }
+        _textAttributeSets[slot] = textAttributes;
+        if (++_textAttributeSetCount * 2 > _textAttributeSets.length) {
+            rehashTextAttributeSets();
+        }
+        return textAttributes;
+    }
+
+    private TextAttributes getActiveTextAttributes(int i) {
+        return (TextAttributes) _highlights[_active[i]].getTextAttributes();
+    }
+
+    /**
+     * @return true if the attributes are those of the active highlights, compared by identity
+     */
+    private boolean isActive(TextAttributes[] textAttributes) {
+        if (textAttributes.length != _activeCount) {
+            return false;
+        }
+        for (int i = 0; i < _activeCount; i++) {
+            if (textAttributes[i] != getActiveTextAttributes(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehashTextAttributeSets() {
+        TextAttributes[][] textAttributeSets = new TextAttributes[_textAttributeSets.length * 2][];
+        int mask = textAttributeSets.length - 1;
+        for (int i = 0; i < _textAttributeSets.length; i++) {
+            TextAttributes[] textAttributes = _textAttributeSets[i];
+            if (textAttributes != null) {
+                int hashCode = 0;
+                for (int j = 0; j < textAttributes.length; j++) {
+                    hashCode = 31 * hashCode + System.identityHashCode(textAttributes[j]);
+                }
+                int slot = (hashCode ^ (hashCode >>> 16)) & mask;
+                while (textAttributeSets[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                textAttributeSets[slot] = textAttributes;
+            }
+        }
+        _textAttributeSets = textAttributeSets;
+    }
+
+    private int getNextStart() {
+        return _nextStartIndex < _highlights.length ? _highlights[_nextStartIndex].getStartOffset() : Integer.MAX_VALUE;
+    }
+
+    private int getNextEnd() {
+        return _nextEndIndex < _byEnd.length ? _highlights[_byEnd[_nextEndIndex]].getEndOffset() : Integer.MAX_VALUE;
+    }
+
+    private void activate(int index) {
+        if (_activeCount == _active.length) {
+            int[] active = new int[_activeCount * 2];
+            System.arraycopy(_active, 0, active, 0, _activeCount);
+            _active = active;
+        }
+        int position = _activeCount;
+        while (position > 0 && _active[position - 1] > index) {
+            _active[position] = _active[position - 1];
+            --position;
+        }
+        _active[position] = index;
+        ++_activeCount;
+        _activeTextAttributes = null;
+    }
+
+    private void deactivate(int index) {
+        for (int i = 0; i < _activeCount; i++) {
+            if (_active[i] == index) {
+                System.arraycopy(_active, i + 1, _active, i, _activeCount - i - 1);
+                --_activeCount;
+                _activeTextAttributes = null;
+                return;
+            }
+        }
+    }
+}
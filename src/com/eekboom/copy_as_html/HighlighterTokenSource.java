@@ -0,0 +1,31 @@
+package com.eekboom.copy_as_html;
+
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.psi.tree.IElementType;
+
+/**
+ * Tokens from the segments the editor's highlighter has already computed, so nothing needs to be lexed again.
+ */
+class HighlighterTokenSource implements TokenSource {
+    private final HighlighterIterator _iterator;
+
+    public HighlighterTokenSource(HighlighterIterator iterator) {
+        _iterator = iterator;
+    }
+
+    public IElementType getTokenType() {
+        return _iterator.atEnd() ? null : _iterator.getTokenType();
+    }
+
+    public int getTokenStart() {
+        return _iterator.getStart();
+    }
+
+    public int getTokenEnd() {
+        return _iterator.getEnd();
+    }
+
+    public void advance() {
+        _iterator.advance();
+    }
+}
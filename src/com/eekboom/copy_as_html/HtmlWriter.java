@@ -0,0 +1,215 @@
+package com.eekboom.copy_as_html;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streams the HTML of an export to any Appendable, e.g. a StringBuilder, a file or a socket, as soon as each piece of text is
+ * rendered. Keeps track of the style of the last piece, so spans are only changed when the style changes.
+ * <p>
+ * Everything goes through one reused chunk of chars, so writing a piece of text allocates nothing, whatever the output is.
+ * A ByteSink gets everything directly instead, with the markup encoded once.
+ */
+class HtmlWriter implements Appendable {
+    private static final int CHUNK_SIZE = 4096;
+
+    private final Appendable _out;
+    private final ByteSink _byteSink;
+    private final StylePalette _palette;
+    private final String[] _replacements = new String[128];
+    private final byte[][] _replacementBytes = new byte[128][];
+    private final char[] _chunk = new char[CHUNK_SIZE];
+    private int _chunkLength;
+    private final char[] _digits = new char[10];
+    private int _styleId = StylePalette.NO_STYLE;
+
+    /**
+     * @param tabText replaces each tab, null to keep tabs
+     */
+    public HtmlWriter(Appendable out, StylePalette palette, String tabText) {
+        _out = out;
+        _byteSink = out instanceof ByteSink ? (ByteSink) out : null;
+        _palette = palette;
+        _replacements['<'] = "&lt;";
+        _replacements['>'] = "&gt;";
+        _replacements['&'] = "&amp;";
+        _replacements['"'] = "&quot;";
+        _replacements['\t'] = tabText;
+        for (int i = 0; i < _replacements.length; i++) {
+            if (_replacements[i] != null) {
+                _replacementBytes[i] = Utf8.encode(_replacements[i]);
+            }
+        }
+    }
+
+    /**
+     * @param attribute the style or class attribute of the pre element
+     */
+    public void startPre(String attribute) throws IOException {
+        append("<pre ").append(attribute).append('>');
+    }
+
+    /**
+     * Quotes the text for HTML and expands tabs in a single pass, copying the runs between special chars in bulk.
+     * @param text must not contain line breaks between start and end
+     */
+    public void write(int styleId, CharSequence text, int start, int end) throws IOException {
+        changeStyle(styleId);
+        int special = indexOfSpecial(text, start, end);
+        if (special == end) {
+            // most tokens need no quoting at all
+            append(text, start, end);
+            return;
+        }
+        int runStart = start;
+        do {
+            append(text, runStart, special);
+            char c = text.charAt(special);
+            if (_byteSink != null) {
+                _byteSink.write(_replacementBytes[c]);
+            }
+            else {
+                append(_replacements[c]);
+            }
+            runStart = special + 1;
+            special = indexOfSpecial(text, runStart, end);
+        }
+        while (special < end);
+        append(text, runStart, end);
+    }
+
+    /**
+     * @return the index of the first char that needs to be replaced, end if there is none
+     */
+    private int indexOfSpecial(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 128 && _replacements[c] != null) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Writes the line number right aligned to the width, followed by a space.
+     */
+    public void writeLineNo(int styleId, int lineNo, int width) throws IOException {
+        changeStyle(styleId);
+        int digitCount = 0;
+        do {
+            _digits[digitCount++] = (char) ('0' + lineNo % 10);
+            lineNo /= 10;
+        }
+        while (lineNo > 0);
+        for (int i = digitCount; i < width; i++) {
+            put(' ');
+        }
+        while (digitCount > 0) {
+            put(_digits[--digitCount]);
+        }
+        put(' ');
+    }
+
+    /**
+     * Writes a line break in the current style, but without a box, boxes must not span line breaks.
+     */
+    public void writeLineBreak() throws IOException {
+        changeStyle(_palette.getWithoutBoxId(_styleId));
+        put('\n');
+    }
+
+    /**
+     * Closes all spans and the pre element and hands everything still held over to the output.
+     */
+    public void endPre() throws IOException {
+        changeStyle(StylePalette.NO_STYLE);
+        append("</pre>");
+        flushChunk();
+    }
+
+    public Appendable append(CharSequence csq) throws IOException {
+        return append(csq, 0, csq.length());
+    }
+
+    private void changeStyle(int styleId) throws IOException {
+        if (_byteSink != null) {
+            _styleId = _palette.appendTransition(_byteSink, _styleId, styleId);
+        }
+        else {
+            _styleId = _palette.appendTransition(this, _styleId, styleId);
+        }
+    }
+
+    public Appendable append(CharSequence csq, int start, int end) throws IOException {
+        if (_byteSink != null) {
+            _byteSink.append(csq, start, end);
+        }
+        else {
+            while (start < end) {
+                if (_chunkLength == CHUNK_SIZE) {
+                    flushChunk();
+                }
+                int count = Math.min(end - start, CHUNK_SIZE - _chunkLength);
+                getChars(csq, start, start + count, _chunk, _chunkLength);
+                _chunkLength += count;
+                start += count;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Copies a run of chars in one pass, also from the text of a large export, which is not a String.
+     */
+    private static void getChars(CharSequence csq, int start, int end, char[] chars, int offset) {
+        if (csq instanceof String) {
+            ((String) csq).getChars(start, end, chars, offset);
+        }
+        else if (csq instanceof StringBuilder) {
+            ((StringBuilder) csq).getChars(start, end, chars, offset);
+        }
+        else if (csq instanceof StringBuffer) {
+            ((StringBuffer) csq).getChars(start, end, chars, offset);
+        }
+        else {
+            for (int i = start; i < end; i++) {
+                chars[offset++] = csq.charAt(i);
+            }
+        }
+    }
+
+    public Appendable append(char c) throws IOException {
+        put(c);
+        return this;
+    }
+
+    private void put(char c) throws IOException {
+        if (_byteSink != null) {
+            _byteSink.append(c);
+            return;
+        }
+        if (_chunkLength == CHUNK_SIZE) {
+            flushChunk();
+        }
+        _chunk[_chunkLength++] = c;
+    }
+
+    private void flushChunk() throws IOException {
+        if (_out instanceof Writer) {
+            ((Writer) _out).write(_chunk, 0, _chunkLength);
+        }
+        else if (_out instanceof StringBuilder) {
+            ((StringBuilder) _out).append(_chunk, 0, _chunkLength);
+        }
+        else if (_out instanceof StringBuffer) {
+            ((StringBuffer) _out).append(_chunk, 0, _chunkLength);
+        }
+        else {
+            for (int i = 0; i < _chunkLength; i++) {
+                _out.append(_chunk[i]);
+            }
+        }
+        _chunkLength = 0;
+    }
+}
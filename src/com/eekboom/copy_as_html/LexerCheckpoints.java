@@ -0,0 +1,79 @@
+package com.eekboom.copy_as_html;
+
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.editor.Document;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Offsets at which the lexer of a document is in its initial state, so lexing can be restarted there.
+ * Checkpoints are recorded about every {@link #CHECKPOINT_INTERVAL} characters while a document is lexed for an export and are
+ * valid only for the modification stamp of the document they were recorded for.
+ * An export of a range deep inside a large file then starts lexing at the nearest checkpoint instead of at the start of the file.
+ */
+class LexerCheckpoints {
+    static final int CHECKPOINT_INTERVAL = 16 * 1024;
+    static final int INITIAL_STATE = 0;
+
+    private static final Map _checkpointsByDocument = new WeakHashMap();
+
+    private final Class _lexerClass;
+    private final long _modificationStamp;
+    private int[] _offsets = new int[]{0};
+    private int _count = 1;
+
+    private LexerCheckpoints(Class lexerClass, long modificationStamp) {
+        _lexerClass = lexerClass;
+        _modificationStamp = modificationStamp;
+    }
+
+    /**
+     * @return the checkpoints for the current content of the document, initially only offset 0
+     */
+    static synchronized LexerCheckpoints getInstance(Document document, Lexer lexer) {
+        LexerCheckpoints checkpoints = (LexerCheckpoints) _checkpointsByDocument.get(document);
+        long modificationStamp = document.getModificationStamp();
+        if (checkpoints == null || checkpoints._modificationStamp != modificationStamp || checkpoints._lexerClass != lexer.getClass()) {
+            checkpoints = new LexerCheckpoints(lexer.getClass(), modificationStamp);
+            _checkpointsByDocument.put(document, checkpoints);
+        }
+        return checkpoints;
+    }
+
+    /**
+     * @return the largest checkpoint that is not after the offset
+     */
+    synchronized int getCheckpoint(int offset) {
+        int low = 0;
+        int high = _count - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (_offsets[middle] <= offset) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return _offsets[low];
+    }
+
+    /**
+     * Records a token start at which the lexer is in its initial state, unless it is too close to the last checkpoint.
+     * @return the offset from which on the next checkpoint would be recorded
+     */
+    synchronized int record(int offset) {
+        int nextOffset = _offsets[_count - 1] + CHECKPOINT_INTERVAL;
+        if (offset < nextOffset) {
+            return nextOffset;
+        }
+        if (_count == _offsets.length) {
+            int[] offsets = new int[_count * 2];
+            System.arraycopy(_offsets, 0, offsets, 0, _count);
+            _offsets = offsets;
+        }
+        _offsets[_count++] = offset;
+        return offset + CHECKPOINT_INTERVAL;
+    }
+}
@@ -0,0 +1,47 @@
+package com.eekboom.copy_as_html;
+
+import com.intellij.lexer.Lexer;
+import com.intellij.psi.tree.IElementType;
+
+/**
+ * Tokens from a lexer that has already been started.
+ * Records restart points in the given checkpoints while lexing.
+ */
+class LexerTokenSource implements TokenSource {
+    private final Lexer _lexer;
+    private final LexerCheckpoints _checkpoints;
+    private final int _textOffset;
+    private int _nextCheckpointOffset;
+
+    /**
+     * @param textOffset the offset in the document of the text the lexer has been started on, checkpoints are document offsets
+     */
+    public LexerTokenSource(Lexer lexer, LexerCheckpoints checkpoints, int textOffset) {
+        _lexer = lexer;
+        _checkpoints = checkpoints;
+        _textOffset = textOffset;
+        _nextCheckpointOffset = checkpoints == null ? Integer.MAX_VALUE : 0;
+    }
+
+    public IElementType getTokenType() {
+        return _lexer.getTokenType();
+    }
+
+    public int getTokenStart() {
+        return _lexer.getTokenStart();
+    }
+
+    public int getTokenEnd() {
+        return _lexer.getTokenEnd();
+    }
+
+    public void advance() {
+        _lexer.advance();
+        int tokenStart = _textOffset + _lexer.getTokenStart();
+        if (tokenStart >= _nextCheckpointOffset && _lexer.getState() == LexerCheckpoints.INITIAL_STATE
+            && _lexer.getTokenType() != null)
+        {
+            _nextCheckpointOffset = _checkpoints.record(tokenStart);
+        }
+    }
+}
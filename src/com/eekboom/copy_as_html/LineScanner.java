@@ -0,0 +1,70 @@
+package com.eekboom.copy_as_html;
+
+/**
+ * Splits a range of a text into lines at \n, \r\n and \r like a regex split with limit -1, but yields the lines as offsets into
+ * the text. Can be reset to scan another range, so scanning allocates nothing.
+ */
+class LineScanner {
+    private CharSequence _text;
+    private int _end;
+    private int _nextStart;
+    private boolean _hasMore;
+    private int _lineStart;
+    private int _lineEnd;
+    private boolean _isTerminated;
+
+    public void reset(CharSequence text, int start, int end) {
+        _text = text;
+        _end = end;
+        _nextStart = start;
+        _hasMore = true;
+    }
+
+    /**
+     * Moves to the next line. There is always at least one line, possibly empty, and there is an empty line after a
+     * trailing line break.
+     * @return false if all lines have been scanned
+     */
+    public boolean nextLine() {
+        if (!_hasMore) {
+            return false;
+        }
+        int lineEnd = _nextStart;
+        while (lineEnd < _end && !isLineBreak(_text.charAt(lineEnd))) {
+            ++lineEnd;
+        }
+        _lineStart = _nextStart;
+        _lineEnd = lineEnd;
+        _isTerminated = lineEnd < _end;
+        if (_isTerminated) {
+            boolean isCrLf = lineEnd + 1 < _end && _text.charAt(lineEnd) == '\r' && _text.charAt(lineEnd + 1) == '\n';
+            _nextStart = lineEnd + (isCrLf ? 2 : 1);
+        }
+        else {
+            _hasMore = false;
+        }
+        return true;
+    }
+
+    public int getLineStart() {
+        return _lineStart;
+    }
+
+    /**
+     * @return the offset of the line break, or the end of the range for the last line
+     */
+    public int getLineEnd() {
+        return _lineEnd;
+    }
+
+    /**
+     * @return true if the line ends with a line break, false for the last line
+     */
+    public boolean isTerminated() {
+        return _isTerminated;
+    }
+
+    private static boolean isLineBreak(char c) {
+        return c == '\n' || c == '\r';
+    }
+}
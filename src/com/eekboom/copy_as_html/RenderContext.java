@@ -0,0 +1,67 @@
+package com.eekboom.copy_as_html;
+
+/**
+ * The state of one render of an export request. Each render has its own context, so any number of exports can be rendered
+ * concurrently, while the action is shared.
+ */
+class RenderContext {
+    private final ExportRequest _request;
+    private final CodeStyleResolver _codeStyleResolver;
+    private final int _lineNoStyleId;
+    private final int _commonWhiteSpacePrefixCount;
+    private final LineScanner _lineScanner = new LineScanner();
+    private int _lineNo;
+    private boolean _isStartOfLine;
+
+    public RenderContext(ExportRequest request, CodeStyleResolver codeStyleResolver, int lineNoStyleId,
+                         int commonWhiteSpacePrefixCount)
+    {
+        _request = request;
+        _codeStyleResolver = codeStyleResolver;
+        _lineNoStyleId = lineNoStyleId;
+        _commonWhiteSpacePrefixCount = commonWhiteSpacePrefixCount;
+    }
+
+    /**
+     * Starts a pass over the range of the request at its first line.
+     */
+    public void startPass() {
+        _lineNo = _request.getFirstLineNo();
+        _isStartOfLine = true;
+    }
+
+    public ExportRequest getRequest() {
+        return _request;
+    }
+
+    public CodeStyleResolver getCodeStyleResolver() {
+        return _codeStyleResolver;
+    }
+
+    public int getLineNoStyleId() {
+        return _lineNoStyleId;
+    }
+
+    public int getCommonWhiteSpacePrefixCount() {
+        return _commonWhiteSpacePrefixCount;
+    }
+
+    public LineScanner getLineScanner() {
+        return _lineScanner;
+    }
+
+    /**
+     * @return the number of the next line
+     */
+    public int nextLineNo() {
+        return ++_lineNo;
+    }
+
+    public boolean isStartOfLine() {
+        return _isStartOfLine;
+    }
+
+    public void setStartOfLine(boolean isStartOfLine) {
+        _isStartOfLine = isStartOfLine;
+    }
+}
@@ -0,0 +1,214 @@
+package com.eekboom.copy_as_html;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bytes written once and read any number of times. Kept in memory in chunks up to {@link #MEMORY_THRESHOLD} bytes, after that
+ * everything is moved to a temporary file, so a large export does not need to be resident.
+ * <p>
+ * Streams opened before the spool is disposed can still be read to their end. The chunks, which are rented from the
+ * {@link BufferPool}, are released and the temporary file is deleted when the spool is disposed and the last of them is closed.
+ * The chunks of a stream that is never closed are left to the garbage collector.
+ */
+class Spool extends OutputStream {
+    static final int MEMORY_THRESHOLD = 1024 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final List _chunks = new ArrayList();
+    private int _size;
+    private File _file;
+    private OutputStream _fileOut;
+    private boolean _isClosed;
+    private boolean _isDisposed;
+    private int _openStreamCount;
+
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (_isClosed) {
+            throw new IOException("Spool is closed");
+        }
+        if (_file == null && _size + length > MEMORY_THRESHOLD) {
+            spill();
+        }
+        if (_fileOut != null) {
+            _fileOut.write(bytes, offset, length);
+            _size += length;
+            return;
+        }
+        while (length > 0) {
+            int chunkOffset = _size % CHUNK_SIZE;
+            if (chunkOffset == 0) {
+                _chunks.add(BufferPool.rent(CHUNK_SIZE));
+            }
+            byte[] chunk = (byte[]) _chunks.get(_chunks.size() - 1);
+            int count = Math.min(length, CHUNK_SIZE - chunkOffset);
+            System.arraycopy(bytes, offset, chunk, chunkOffset, count);
+            offset += count;
+            length -= count;
+            _size += count;
+        }
+    }
+
+    private void spill() throws IOException {
+        _file = File.createTempFile("copy_as_html", ".html");
+        _fileOut = new BufferedOutputStream(new FileOutputStream(_file));
+        for (int i = 0; i < _chunks.size(); i++) {
+            byte[] chunk = (byte[]) _chunks.get(i);
+            _fileOut.write(chunk, 0, Math.min(CHUNK_SIZE, _size - i * CHUNK_SIZE));
+            BufferPool.release(chunk);
+        }
+        _chunks.clear();
+    }
+
+    /**
+     * Ends writing, the spool can be read from now on.
+     */
+    public void close() throws IOException {
+        _isClosed = true;
+        if (_fileOut != null) {
+            _fileOut.close();
+            _fileOut = null;
+        }
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * @return a new stream over all bytes written, the spool must have been closed and must not have been disposed
+     */
+    public synchronized InputStream openInputStream() throws IOException {
+        if (!_isClosed) {
+            throw new IOException("Spool is still written");
+        }
+        if (_isDisposed) {
+            throw new IOException("Spool is disposed");
+        }
+        InputStream in;
+        if (_file != null) {
+            in = new BufferedInputStream(new FileInputStream(_file));
+        }
+        else {
+            in = new ChunkInputStream(_chunks, _size);
+        }
+        ++_openStreamCount;
+        return new FilterInputStream(in) {
+            private boolean _isStreamClosed;
+
+            public void close() throws IOException {
+                if (!_isStreamClosed) {
+                    _isStreamClosed = true;
+                    super.close();
+                    streamClosed();
+                }
+            }
+        };
+    }
+
+    private synchronized void streamClosed() {
+        --_openStreamCount;
+        if (_isDisposed && _openStreamCount == 0) {
+            releaseChunks();
+            deleteFile();
+        }
+    }
+
+    /**
+     * Drops the bytes, no more streams can be opened. Also needed when writing failed.
+     */
+    public synchronized void dispose() {
+        if (_isDisposed) {
+            return;
+        }
+        _isDisposed = true;
+        _isClosed = true;
+        if (_openStreamCount == 0) {
+            releaseChunks();
+        }
+        if (_fileOut != null) {
+            try {
+                _fileOut.close();
+            }
+            catch (IOException e) {
+                // the file is deleted anyway
+            }
+            _fileOut = null;
+        }
+        if (_file != null) {
+            if (_openStreamCount == 0) {
+                deleteFile();
+            }
+            else {
+                // in case a paste target never closes its stream
+                _file.deleteOnExit();
+            }
+        }
+    }
+
+    private void releaseChunks() {
+        for (int i = 0; i < _chunks.size(); i++) {
+            BufferPool.release((byte[]) _chunks.get(i));
+        }
+        _chunks.clear();
+    }
+
+    private void deleteFile() {
+        if (_file != null) {
+            if (!_file.delete()) {
+                _file.deleteOnExit();
+            }
+            _file = null;
+        }
+    }
+
+    /**
+     * Reads the chunks of a spool, which keeps them until the stream is closed, even when disposed in the meantime.
+     */
+    private static class ChunkInputStream extends InputStream {
+        private final List _chunks;
+        private final int _size;
+        private int _position;
+
+        public ChunkInputStream(List chunks, int size) {
+            _chunks = chunks;
+            _size = size;
+        }
+
+        public int read() {
+            if (_position == _size) {
+                return -1;
+            }
+            byte[] chunk = (byte[]) _chunks.get(_position / CHUNK_SIZE);
+            return chunk[_position++ % CHUNK_SIZE] & 0xff;
+        }
+
+        public int read(byte[] bytes, int offset, int length) {
+            if (_position == _size) {
+                return -1;
+            }
+            int chunkOffset = _position % CHUNK_SIZE;
+            int count = Math.min(length, Math.min(CHUNK_SIZE - chunkOffset, _size - _position));
+            System.arraycopy(_chunks.get(_position / CHUNK_SIZE), chunkOffset, bytes, offset, count);
+            _position += count;
+            return count;
+        }
+
+        public int available() {
+            return _size - _position;
+        }
+    }
+}
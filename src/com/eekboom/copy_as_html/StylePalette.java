@@ -0,0 +1,170 @@
+package com.eekboom.copy_as_html;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * All code styles used in one export, each with a small int id. A style is written as nested spans (layers), the start tag of
+ * each distinct span is precomputed once. Style changes are detected by comparing ids. On a change only the spans that differ
+ * are closed and opened, spans shared by the outer layers of both styles stay open.
+ */
+class StylePalette {
+    public static final int NO_STYLE = -1;
+
+    private static final String END_SPAN = "</span>";
+    private static final byte[] END_SPAN_BYTES = Utf8.encode(END_SPAN);
+
+    private final StyleSheet _styleSheet;
+    private final boolean _combineSpans;
+
+    private final Map _ids = new HashMap();
+    private CodeStyle[] _styles = new CodeStyle[16];
+    /**
+     * Span ids of each style, outermost first
+     */
+    private int[][] _layers = new int[16][];
+    /**
+     * Id of the same style without a box plus 1, 0 if not yet known
+     */
+    private int[] _withoutBoxIds = new int[16];
+    private int _count;
+
+    private final Map _spanIds = new HashMap();
+    private String[] _startSpans = new String[16];
+    private byte[][] _startSpanBytes = new byte[16][];
+    private int _spanCount;
+
+    /**
+     * @param combineSpans write each style as a single span instead of one span per decoration
+     */
+    public StylePalette(StyleSheet styleSheet, boolean combineSpans) {
+        _styleSheet = styleSheet;
+        _combineSpans = combineSpans;
+    }
+
+    public StyleSheet getStyleSheet() {
+        return _styleSheet;
+    }
+
+    public int intern(CodeStyle codeStyle) {
+        Integer id = (Integer) _ids.get(codeStyle);
+        if (id != null) {
+            return id.intValue();
+        }
+        if (_count == _styles.length) {
+            int capacity = _count * 2;
+            CodeStyle[] styles = new CodeStyle[capacity];
+            System.arraycopy(_styles, 0, styles, 0, _count);
+            _styles = styles;
+            int[][] layers = new int[capacity][];
+            System.arraycopy(_layers, 0, layers, 0, _count);
+            _layers = layers;
+            int[] withoutBoxIds = new int[capacity];
+            System.arraycopy(_withoutBoxIds, 0, withoutBoxIds, 0, _count);
+            _withoutBoxIds = withoutBoxIds;
+        }
+        int newId = _count++;
+        _styles[newId] = codeStyle;
+        String[] declarations = codeStyle.getSpanDeclarations(_combineSpans);
+        int[] layers = new int[declarations.length];
+        for (int i = 0; i < declarations.length; i++) {
+            layers[i] = internSpan(declarations[i]);
+        }
+        _layers[newId] = layers;
+        _ids.put(codeStyle, Integer.valueOf(newId));
+        return newId;
+    }
+
+    private int internSpan(String declaration) {
+        Integer id = (Integer) _spanIds.get(declaration);
+        if (id != null) {
+            return id.intValue();
+        }
+        if (_spanCount == _startSpans.length) {
+            String[] startSpans = new String[_spanCount * 2];
+            System.arraycopy(_startSpans, 0, startSpans, 0, _spanCount);
+            _startSpans = startSpans;
+            byte[][] startSpanBytes = new byte[_spanCount * 2][];
+            System.arraycopy(_startSpanBytes, 0, startSpanBytes, 0, _spanCount);
+            _startSpanBytes = startSpanBytes;
+        }
+        int newId = _spanCount++;
+        _startSpans[newId] = "<span " + _styleSheet.getAttribute(declaration) + ">";
+        _spanIds.put(declaration, Integer.valueOf(newId));
+        return newId;
+    }
+
+    /**
+     * Boxes must not span line breaks.
+     * @return the id of the style without its box, NO_STYLE for NO_STYLE
+     */
+    public int getWithoutBoxId(int id) {
+        if (id == NO_STYLE) {
+            return NO_STYLE;
+        }
+        if (_withoutBoxIds[id] == 0) {
+            CodeStyle style = _styles[id];
+            int withoutBoxId = style.getBoxColor() == null ? id : intern(style.withoutBox());
+            _withoutBoxIds[id] = withoutBoxId + 1;
+        }
+        return _withoutBoxIds[id] - 1;
+    }
+
+    /**
+     * Closes the spans of the old style and opens those of the new one, keeping the outer spans both have in common.
+     * @return the new style id
+     */
+    public int appendTransition(Appendable out, int oldId, int newId) throws IOException {
+        if (oldId == newId) {
+            return newId;
+        }
+        int common = getCommonLayerCount(oldId, newId);
+        for (int i = common, count = getLayerCount(oldId); i < count; i++) {
+            out.append(END_SPAN);
+        }
+        for (int i = common, count = getLayerCount(newId); i < count; i++) {
+            out.append(_startSpans[_layers[newId][i]]);
+        }
+        return newId;
+    }
+
+    /**
+     * Like {@link #appendTransition(Appendable, int, int)}, but writes the spans encoded once for all their uses.
+     * @return the new style id
+     */
+    public int appendTransition(ByteSink sink, int oldId, int newId) throws IOException {
+        if (oldId == newId) {
+            return newId;
+        }
+        int common = getCommonLayerCount(oldId, newId);
+        for (int i = common, count = getLayerCount(oldId); i < count; i++) {
+            sink.write(END_SPAN_BYTES);
+        }
+        for (int i = common, count = getLayerCount(newId); i < count; i++) {
+            int spanId = _layers[newId][i];
+            if (_startSpanBytes[spanId] == null) {
+                _startSpanBytes[spanId] = Utf8.encode(_startSpans[spanId]);
+            }
+            sink.write(_startSpanBytes[spanId]);
+        }
+        return newId;
+    }
+
+    private int getLayerCount(int id) {
+        return id == NO_STYLE ? 0 : _layers[id].length;
+    }
+
+    /**
+     * @return the number of outer spans both styles have in common
+     */
+    private int getCommonLayerCount(int oldId, int newId) {
+        int oldCount = getLayerCount(oldId);
+        int newCount = getLayerCount(newId);
+        int common = 0;
+        while (common < oldCount && common < newCount && _layers[oldId][common] == _layers[newId][common]) {
+            ++common;
+        }
+        return common;
+    }
+}
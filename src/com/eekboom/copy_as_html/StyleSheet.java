@@ -0,0 +1,67 @@
+package com.eekboom.copy_as_html;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns CSS declarations into the attribute of an element, either inline (style="...") or as a short class name.
+ * With classes each distinct declaration is written only once, in the style element of the export. The class names of each
+ * style sheet start with a prefix of their own, e.g. class="km3x0f2a-5-3", so that exports pasted into the same page don't
+ * override each other's rules.
+ */
+class StyleSheet {
+    private static final String PREFIX_BASE = "k" + Long.toString(System.currentTimeMillis(), 36) + "-";
+    private static int _styleSheetCount;
+
+    private final boolean _useClasses;
+    private final String _prefix;
+    private final Map _classNames = new HashMap();
+    private final List _declarations = new ArrayList();
+
+    public StyleSheet(boolean useClasses) {
+        _useClasses = useClasses;
+        _prefix = useClasses ? createPrefix() : null;
+    }
+
+    private static synchronized String createPrefix() {
+        return PREFIX_BASE + Integer.toString(_styleSheetCount++, 36) + "-";
+    }
+
+    public boolean isUseClasses() {
+        return _useClasses;
+    }
+
+    /**
+     * @param declaration e.g. "color:#000080;font-weight:bold;", must not contain double quotes
+     * @return e.g. style="color:#000080;font-weight:bold;" or class="km3x0f2a-5-3"
+     */
+    public String getAttribute(String declaration) {
+        if (!_useClasses) {
+            return "style=\"" + declaration + "\"";
+        }
+        String className = (String) _classNames.get(declaration);
+        if (className == null) {
+            className = _prefix + _declarations.size();
+            _classNames.put(declaration, className);
+            _declarations.add(declaration);
+        }
+        return "class=\"" + className + "\"";
+    }
+
+    /**
+     * Appends the style element with a rule for each class handed out so far, nothing if classes are not used.
+     */
+    public void appendStyleElement(Appendable out) throws IOException {
+        if (!_useClasses) {
+            return;
+        }
+        out.append("<style type=\"text/css\">");
+        for (int i = 0; i < _declarations.size(); i++) {
+            out.append('.').append(_prefix).append(String.valueOf(i)).append('{').append((String) _declarations.get(i)).append('}');
+        }
+        out.append("</style>");
+    }
+}
@@ -0,0 +1,94 @@
+package com.eekboom.copy_as_html;
+
+import com.intellij.psi.tree.IElementType;
+
+/**
+ * The tokens of a range, copied from a token source that is only valid as long as the document is not changed.
+ */
+class TokenSnapshot {
+    private IElementType[] _types = new IElementType[256];
+    private int[] _bounds = new int[256 * 2];
+    private int _count;
+
+    /**
+     * Copies the tokens from the current one of the source up to the first one starting at or after the end offset.
+     * @param textOffset subtracted from the offsets of the source, for tokens relative to a part of the text
+     */
+    public TokenSnapshot(TokenSource source, int endOffset, int textOffset) {
+        IElementType tokenType;
+        while ((tokenType = source.getTokenType()) != null && source.getTokenStart() < endOffset) {
+            if (_count == _types.length) {
+                IElementType[] types = new IElementType[_count * 2];
+                System.arraycopy(_types, 0, types, 0, _count);
+                _types = types;
+                int[] bounds = new int[_count * 4];
+                System.arraycopy(_bounds, 0, bounds, 0, _count * 2);
+                _bounds = bounds;
+            }
+            _types[_count] = tokenType;
+            _bounds[2 * _count] = source.getTokenStart() - textOffset;
+            _bounds[2 * _count + 1] = source.getTokenEnd() - textOffset;
+            ++_count;
+            source.advance();
+        }
+    }
+
+    public int getCount() {
+        return _count;
+    }
+
+    public IElementType getTokenType(int index) {
+        return _types[index];
+    }
+
+    public int getTokenStart(int index) {
+        return _bounds[2 * index];
+    }
+
+    public int getTokenEnd(int index) {
+        return _bounds[2 * index + 1];
+    }
+
+    /**
+     * @return the index of the first token that ends after the offset, the count if there is none
+     */
+    public int indexOf(int offset) {
+        int low = 0;
+        int high = _count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (_bounds[2 * middle + 1] <= offset) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return a new source of the copied tokens, starting at the first one
+     */
+    public TokenSource createTokenSource() {
+        return new TokenSource() {
+            private int _index;
+
+            public IElementType getTokenType() {
+                return _index < _count ? _types[_index] : null;
+            }
+
+            public int getTokenStart() {
+                return _bounds[2 * _index];
+            }
+
+            public int getTokenEnd() {
+                return _bounds[2 * _index + 1];
+            }
+
+            public void advance() {
+                ++_index;
+            }
+        };
+    }
+}
@@ -0,0 +1,20 @@
+package com.eekboom.copy_as_html;
+
+import com.intellij.psi.tree.IElementType;
+
+/**
+ * The sequence of highlighting tokens the export walks through. Mirrors the part of the
+ * {@link com.intellij.lexer.Lexer} API that is needed, so that tokens can either be lexed or taken from the editor.
+ */
+interface TokenSource {
+    /**
+     * @return the type of the current token or null if there are no more tokens
+     */
+    IElementType getTokenType();
+
+    int getTokenStart();
+
+    int getTokenEnd();
+
+    void advance();
+}
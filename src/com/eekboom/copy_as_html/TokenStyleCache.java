@@ -0,0 +1,96 @@
+package com.eekboom.copy_as_html;
+
+import com.intellij.openapi.editor.colors.EditorColorsScheme;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.openapi.fileTypes.SyntaxHighlighter;
+import com.intellij.psi.tree.IElementType;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The code style of each token type (before range highlights are applied), resolved lazily and then found by the index of the
+ * token type. There is one cache per color scheme and syntax highlighter (the factories create a new highlighter for every
+ * request). A highlighter is identified by its class together with the language and file type it has been created for, because
+ * some highlighters map the same token types differently depending on them, e.g. the XML highlighter for XML, XHTML and DTD.
+ * All caches are dropped when the color scheme changes.
+ */
+class TokenStyleCache {
+    private static final Map _cachesByScheme = new WeakHashMap();
+
+    private final SyntaxHighlighter _syntaxHighlighter;
+    private final CodeStyle _defaultCodeStyle;
+    private volatile CodeStyle[] _codeStyles = new CodeStyle[0];
+
+    private TokenStyleCache(SyntaxHighlighter syntaxHighlighter, CodeStyle defaultCodeStyle) {
+        _syntaxHighlighter = syntaxHighlighter;
+        _defaultCodeStyle = defaultCodeStyle;
+    }
+
+    /**
+     * @param syntaxHighlighterKey identifies the token highlights of the syntax highlighter, compared by equals
+     */
+    static synchronized TokenStyleCache getInstance(EditorColorsScheme colorsScheme, SyntaxHighlighter syntaxHighlighter,
+                                                    Object syntaxHighlighterKey, CodeStyle defaultCodeStyle)
+    {
+        Map cachesByHighlighterKey = (Map) _cachesByScheme.get(colorsScheme);
+        if (cachesByHighlighterKey == null) {
+            cachesByHighlighterKey = new HashMap();
+            _cachesByScheme.put(colorsScheme, cachesByHighlighterKey);
+        }
+        TokenStyleCache cache = (TokenStyleCache) cachesByHighlighterKey.get(syntaxHighlighterKey);
+        // the default style e.g. has another background for read-only documents
+        if (cache == null || !cache._defaultCodeStyle.equals(defaultCodeStyle)) {
+            cache = new TokenStyleCache(syntaxHighlighter, defaultCodeStyle);
+            cachesByHighlighterKey.put(syntaxHighlighterKey, cache);
+        }
+        return cache;
+    }
+
+    static synchronized void clear() {
+        _cachesByScheme.clear();
+    }
+
+    /**
+     * @return the code styles resolved so far by the index of their token type, null where not resolved; the array is never
+     * modified, resolving a style replaces it
+     */
+    CodeStyle[] getCodeStyles() {
+        return _codeStyles;
+    }
+
+    /**
+     * @param colorsScheme the scheme this cache has been created for
+     */
+    CodeStyle getCodeStyle(IElementType tokenType, EditorColorsScheme colorsScheme) {
+        int index = tokenType.getIndex();
+        CodeStyle[] codeStyles = _codeStyles;
+        if (index < codeStyles.length && codeStyles[index] != null) {
+            return codeStyles[index];
+        }
+        return resolveCodeStyle(tokenType, colorsScheme);
+    }
+
+    private synchronized CodeStyle resolveCodeStyle(IElementType tokenType, EditorColorsScheme colorsScheme) {
+        int index = tokenType.getIndex();
+        CodeStyle[] codeStyles = _codeStyles;
+        if (index < codeStyles.length && codeStyles[index] != null) {
+            return codeStyles[index];
+        }
+
+        TextAttributesKey[] syntaxTextAttributeKeys = _syntaxHighlighter.getTokenHighlights(tokenType);
+        TextAttributes[] textAttributes = new TextAttributes[syntaxTextAttributeKeys.length];
+        for (int i = 0; i < syntaxTextAttributeKeys.length; i++) {
+            textAttributes[i] = colorsScheme.getAttributes(syntaxTextAttributeKeys[i]);
+        }
+        CodeStyle codeStyle = _defaultCodeStyle.merge(textAttributes);
+
+        CodeStyle[] newCodeStyles = new CodeStyle[Math.max(codeStyles.length, index + 1)];
+        System.arraycopy(codeStyles, 0, newCodeStyles, 0, codeStyles.length);
+        newCodeStyles[index] = codeStyle;
+        _codeStyles = newCodeStyles;
+        return codeStyle;
+    }
+}
@@ -0,0 +1,82 @@
+package com.eekboom.copy_as_html;
+
+/**
+ * Encodes chars as UTF-8 straight into a byte array, like String.getBytes("UTF-8") but without the intermediate copies.
+ * Unpaired surrogates are encoded as '?', as the JDK does.
+ */
+class Utf8 {
+    private Utf8() {
+    }
+
+    /**
+     * The bytes must have room for three bytes per char from the offset on.
+     * @return the offset after the last byte written
+     */
+    public static int encode(CharSequence text, int start, int end, byte[] bytes, int offset) {
+        int i = start;
+        // most of the text is ASCII
+        while (i < end) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            bytes[offset++] = (byte) c;
+            ++i;
+        }
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes[offset++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                bytes[offset++] = (byte) (0xc0 | (c >> 6));
+                bytes[offset++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                bytes[offset++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[offset++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+            else {
+                offset = encode(c, bytes, offset);
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Encodes a single char, a surrogate as '?'.
+     * @return the offset after the last byte written
+     */
+    public static int encode(char c, byte[] bytes, int offset) {
+        if (c < 0x80) {
+            bytes[offset++] = (byte) c;
+        }
+        else if (c < 0x800) {
+            bytes[offset++] = (byte) (0xc0 | (c >> 6));
+            bytes[offset++] = (byte) (0x80 | (c & 0x3f));
+        }
+        else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+            bytes[offset++] = (byte) '?';
+        }
+        else {
+            bytes[offset++] = (byte) (0xe0 | (c >> 12));
+            bytes[offset++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            bytes[offset++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return offset;
+    }
+
+    /**
+     * @return the chars encoded, for markup that is written many times
+     */
+    public static byte[] encode(String text) {
+        byte[] bytes = new byte[3 * text.length()];
+        int length = encode(text, 0, text.length(), bytes, 0);
+        byte[] result = new byte[length];
+        System.arraycopy(bytes, 0, result, 0, length);
+        return result;
+    }
+}
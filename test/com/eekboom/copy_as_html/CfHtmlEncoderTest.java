@@ -0,0 +1,189 @@
+package com.eekboom.copy_as_html;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that {@link CfHtmlEncoder} produces exactly the bytes of the former String based conversion, on random text with
+ * non-ASCII chars, surrogate pairs and unpaired surrogates. Needs nothing but a JDK, run with "ant test".
+ */
+public class CfHtmlEncoderTest {
+    private static final int SAMPLE_COUNT = 2000;
+    private static final String WINDOWS_LINE_SEPARATOR = "\r\n";
+    private static final String WINDOWS_HTML_HEADER = "Version:0.9" + WINDOWS_LINE_SEPARATOR +
+                                                      "StartHTML:00000000000" + WINDOWS_LINE_SEPARATOR +
+                                                      "EndHTML:00000000000" + WINDOWS_LINE_SEPARATOR +
+                                                      "StartFragment:00000000000" + WINDOWS_LINE_SEPARATOR +
+                                                      "EndFragment:00000000000" + WINDOWS_LINE_SEPARATOR;
+
+    private final Random _random = new Random(20121016L);
+
+    public static void main(String[] args) throws IOException {
+        CfHtmlEncoderTest test = new CfHtmlEncoderTest();
+        test.testFixedSamples();
+        test.testRandomText();
+        test.testRandomPieces();
+        test.testUtf8();
+        System.out.println("CfHtmlEncoderTest: OK");
+    }
+
+    public void testFixedSamples() throws IOException {
+        String[] samples = new String[]{"", "a", "<pre>x &lt; y</pre>", "\u00e4\u00f6\u00fc\u00df", "\u20ac \u4e2d\u6587",
+                                        "\ud83d\ude00", "\ud83d", "\ude00", "x\ud83dy", "\ude00\ud83d", "\0\r\n\t"};
+        for (int i = 0; i < samples.length; i++) {
+            assertEncodedLikeBefore(samples[i], new int[0]);
+        }
+    }
+
+    public void testRandomText() throws IOException {
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            assertEncodedLikeBefore(createRandomText(_random.nextInt(i % 100 == 0 ? 20000 : 300)), new int[0]);
+        }
+    }
+
+    /**
+     * The HTML reaches the sink in pieces, like the tokens of an export, and pieces longer than the sink encodes at once.
+     */
+    public void testRandomPieces() throws IOException {
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            String text = createRandomText(_random.nextInt(i % 100 == 0 ? 20000 : 300));
+            int[] pieceEnds = new int[_random.nextInt(10)];
+            for (int j = 0; j < pieceEnds.length; j++) {
+                int pieceEnd = _random.nextInt(text.length() + 1);
+                // a surrogate pair must not be split between two appends
+                if (pieceEnd > 0 && pieceEnd < text.length() && Character.isHighSurrogate(text.charAt(pieceEnd - 1))
+                    && Character.isLowSurrogate(text.charAt(pieceEnd)))
+                {
+                    --pieceEnd;
+                }
+                pieceEnds[j] = pieceEnd;
+            }
+            Arrays.sort(pieceEnds);
+            assertEncodedLikeBefore(text, pieceEnds);
+        }
+    }
+
+    public void testUtf8() throws UnsupportedEncodingException {
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            String text = createRandomText(_random.nextInt(300));
+            assertEquals(text, text.getBytes("UTF-8"), Utf8.encode(text));
+        }
+    }
+
+    private void assertEncodedLikeBefore(String html, int[] pieceEnds) throws IOException {
+        ByteSink sink = CfHtmlEncoder.createSink();
+        byte[] bytes;
+        try {
+            int start = 0;
+            for (int i = 0; i < pieceEnds.length; i++) {
+                sink.append(html, start, pieceEnds[i]);
+                start = pieceEnds[i];
+            }
+            sink.append(html, start, html.length());
+            bytes = CfHtmlEncoder.finish(sink);
+        }
+        finally {
+            sink.release();
+        }
+        assertEquals(html, convertToWindowsHtmlClipboardFormat(html), bytes);
+    }
+
+    private static void assertEquals(String text, byte[] expected, byte[] actual) {
+        if (!Arrays.equals(expected, actual)) {
+            throw new AssertionError("Different bytes for " + escape(text));
+        }
+    }
+
+    private static String escape(String text) {
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x20 && c < 0x7f) {
+                buffer.append(c);
+            }
+            else {
+                buffer.append("\\u").append(Integer.toHexString(c | 0x10000).substring(1));
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Mostly ASCII, with markup chars, line breaks, two and three byte chars, surrogate pairs and unpaired surrogates.
+     */
+    private String createRandomText(int length) {
+        StringBuilder buffer = new StringBuilder(length);
+        while (buffer.length() < length) {
+            int kind = _random.nextInt(20);
+            if (kind < 10) {
+                buffer.append((char) (0x20 + _random.nextInt(0x5f)));
+            }
+            else if (kind < 12) {
+                buffer.append("<>&\"\t\r\n\0".charAt(_random.nextInt(8)));
+            }
+            else if (kind < 14) {
+                buffer.append((char) (0x80 + _random.nextInt(0x780)));
+            }
+            else if (kind < 16) {
+                buffer.append((char) (0x800 + _random.nextInt(Character.MIN_SURROGATE - 0x800)));
+            }
+            else if (kind < 17) {
+                buffer.append((char) (Character.MAX_SURROGATE + 1 + _random.nextInt(0xffff - Character.MAX_SURROGATE)));
+            }
+            else if (kind < 19) {
+                int codePoint = Character.MIN_SUPPLEMENTARY_CODE_POINT
+                                + _random.nextInt(Character.MAX_CODE_POINT - Character.MIN_SUPPLEMENTARY_CODE_POINT + 1);
+                buffer.append(Character.toChars(codePoint));
+            }
+            else {
+                buffer.append((char) (Character.MIN_SURROGATE + _random.nextInt(Character.MAX_SURROGATE - Character.MIN_SURROGATE + 1)));
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * The conversion as it was before the envelope got encoded in place, kept as the reference.
+     */
+    private static byte[] convertToWindowsHtmlClipboardFormat(String html) throws UnsupportedEncodingException {
+        html = "<!--StartFragment-->" + html + "<!--EndFragment-->\r\n\0";
+
+        byte[] bHtml = html.getBytes("UTF-8");// encode first 'cause it may grow
+
+        int headerLen = WINDOWS_HTML_HEADER.length();
+        int htmlLen = bHtml.length;
+
+        StringBuffer buf = new StringBuffer(WINDOWS_HTML_HEADER);
+        setValue(buf, "StartHTML", headerLen - 1);
+        setValue(buf, "EndHTML", headerLen + htmlLen - 1);
+        setValue(buf, "StartFragment", headerLen - 1);
+        setValue(buf, "EndFragment", headerLen + htmlLen - 1);
+        byte[] bHeader = buf.toString().getBytes("UTF-8");// should stay the same (no nonASCII chars in header)
+
+        byte result[] = new byte[headerLen + htmlLen];
+        System.arraycopy(bHeader, 0, result, 0, bHeader.length);
+        System.arraycopy(bHtml, 0, result, bHeader.length, bHtml.length);
+
+        return result;
+    }
+
+    private static void setValue(StringBuffer src, String name, int value) {
+        String search = name + ":00000000000";
+        int pos = src.indexOf(search);
+        if(pos == -1) {
+            return;// not found, do nothing
+        }
+
+        boolean belowZero = value < 0;
+        if(belowZero) {
+            value = -value;
+        }
+
+        src.replace(pos + search.length() - (value + "").length(), pos + search.length(), value + "");
+        if(belowZero) {
+            src.setCharAt(pos + name.length() + 1, '-'); // +1 'cause of ':' in "SearchMe:"
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.eekboom.copy_as_html;
+
+import com.intellij.openapi.editor.markup.EffectType;
+import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.psi.tree.IElementType;
+
+import java.awt.*;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the bytes allocated and the time per token while an export of a generated source file is rendered, both into a
+ * StringBuilder and into a ByteSink, with inline styles and with CSS classes. Each render goes through
+ * {@link CopyAsHtmlAction#writeHtml(ExportRequest, Appendable, com.intellij.openapi.progress.ProgressIndicator)} like an export
+ * does: the tokens come from the snapshot of the request, are split at the range highlights by the segmenter, resolved to styles,
+ * scanned for lines and written. The text is a String, like the text of a small export. Highlights mark fields, method calls and
+ * warnings the way the editor's analysis does, sharing the attributes of each kind.
+ * In steady state the render should not allocate per token. Needs a JDK with com.sun.management.ThreadMXBean, run with
+ * "ant benchmark".
+ */
+public class RenderAllocationBenchmark {
+    private static final int LINE_COUNT = 2000;
+    private static final int WARM_UP_RENDER_COUNT = 200;
+    private static final int RENDER_COUNT = 200;
+
+    private static final IElementType WHITE_SPACE = new IElementType("WHITE_SPACE", null);
+    private static final IElementType KEYWORD = new IElementType("KEYWORD", null);
+    private static final IElementType IDENTIFIER = new IElementType("IDENTIFIER", null);
+    private static final IElementType NUMBER = new IElementType("NUMBER", null);
+    private static final IElementType STRING = new IElementType("STRING", null);
+    private static final IElementType COMMENT = new IElementType("COMMENT", null);
+    private static final IElementType OPERATION = new IElementType("OPERATION", null);
+
+    private static final TextAttributes FIELD_ATTRIBUTES = new TextAttributes(new Color(0x660e7a), null, null, null, Font.BOLD);
+    private static final TextAttributes METHOD_CALL_ATTRIBUTES = new TextAttributes(null, null, null, null, Font.ITALIC);
+    private static final TextAttributes WARNING_ATTRIBUTES = new TextAttributes(null, new Color(0xf6ebbc), new Color(0xffcc00),
+                                                                                EffectType.WAVE_UNDERSCORE, Font.PLAIN);
+
+    private static final String[] LINES = new String[]{
+            "    public static int indexOf(CharSequence text, char c, int start) {",
+            "        for (int i = start; i < text.length() && i >= 0; i++) {",
+            "\t\tif (text.charAt(i) == c) { return _offset + i; } // \"found\" <here> & done",
+            "        }",
+            "        _count += 42; /* \u00e4\u00f6\u00fc \u4e2d\u6587 */",
+            "        return _fallback.indexOf(text, \"<none>\", -1);",
+            "    }",
+    };
+    private static final String[] KEYWORDS = new String[]{"public", "static", "int", "char", "for", "if", "return"};
+
+    private final String _text;
+    private final List _tokens = new ArrayList();
+    private final List _highlights = new ArrayList();
+    private final CodeStyle[] _tokenCodeStyles;
+    private final CodeStyle _defaultCodeStyle = new CodeStyle(Color.BLACK, Color.WHITE, false, false, null, null, null);
+    private final CodeStyle _lineNoCodeStyle = new CodeStyle(Color.GRAY, new Color(0xf0f0f0), false, false, null, null, null);
+
+    public static void main(String[] args) throws IOException {
+        RenderAllocationBenchmark benchmark = new RenderAllocationBenchmark();
+        StringBuilder builder = new StringBuilder();
+        ByteSink sink = new ByteSink();
+        try {
+            benchmark.run("StringBuilder, inline styles", benchmark.createRequest(false), builder, null);
+            benchmark.run("ByteSink, inline styles", benchmark.createRequest(false), sink, sink);
+            benchmark.run("StringBuilder, CSS classes", benchmark.createRequest(true), builder, null);
+            benchmark.run("ByteSink, CSS classes", benchmark.createRequest(true), sink, sink);
+        }
+        finally {
+            sink.release();
+        }
+    }
+
+    public RenderAllocationBenchmark() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINE_COUNT; i++) {
+            String line = LINES[i % LINES.length];
+            addTokens(line, text.length());
+            text.append(line).append('\n');
+            if (i % 50 == 7) {
+                // a warning over the whole line, overlapping the other highlights
+                _highlights.add(new RangeHighlight(text.length() - line.length() - 1, text.length() - 1, WARNING_ATTRIBUTES));
+            }
+        }
+        _text = text.toString();
+        Collections.sort(_highlights);
+
+        IElementType[] tokenTypes = new IElementType[]{WHITE_SPACE, KEYWORD, IDENTIFIER, NUMBER, STRING, COMMENT, OPERATION};
+        Color[] colors = new Color[]{null, new Color(0x000080), null, new Color(0x0000ff), new Color(0x008000), new Color(0x808080),
+                                     null};
+        int maxIndex = 0;
+        for (int i = 0; i < tokenTypes.length; i++) {
+            maxIndex = Math.max(maxIndex, tokenTypes[i].getIndex());
+        }
+        _tokenCodeStyles = new CodeStyle[maxIndex + 1];
+        for (int i = 0; i < tokenTypes.length; i++) {
+            int fontType = tokenTypes[i] == KEYWORD ? Font.BOLD : tokenTypes[i] == COMMENT ? Font.ITALIC : Font.PLAIN;
+            TextAttributes textAttributes = new TextAttributes(colors[i], null, null, null, fontType);
+            _tokenCodeStyles[tokenTypes[i].getIndex()] = _defaultCodeStyle.merge(new TextAttributes[]{textAttributes});
+        }
+    }
+
+    /**
+     * Splits the line into tokens like a lexer of the language would and highlights fields and method calls.
+     */
+    private void addTokens(String line, int offset) {
+        int start = 0;
+        while (start < line.length()) {
+            char c = line.charAt(start);
+            int end = start + 1;
+            IElementType tokenType;
+            if (Character.isWhitespace(c)) {
+                while (end < line.length() && Character.isWhitespace(line.charAt(end))) {
+                    ++end;
+                }
+                tokenType = WHITE_SPACE;
+            }
+            else if (Character.isJavaIdentifierStart(c)) {
+                while (end < line.length() && Character.isJavaIdentifierPart(line.charAt(end))) {
+                    ++end;
+                }
+                String word = line.substring(start, end);
+                tokenType = IDENTIFIER;
+                for (int i = 0; i < KEYWORDS.length; i++) {
+                    if (KEYWORDS[i].equals(word)) {
+                        tokenType = KEYWORD;
+                    }
+                }
+                if (tokenType == IDENTIFIER && c == '_') {
+                    _highlights.add(new RangeHighlight(offset + start, offset + end, FIELD_ATTRIBUTES));
+                }
+                else if (tokenType == IDENTIFIER && end < line.length() && line.charAt(end) == '(') {
+                    _highlights.add(new RangeHighlight(offset + start, offset + end, METHOD_CALL_ATTRIBUTES));
+                }
+            }
+            else if (Character.isDigit(c)) {
+                while (end < line.length() && Character.isDigit(line.charAt(end))) {
+                    ++end;
+                }
+                tokenType = NUMBER;
+            }
+            else if (c == '"') {
+                end = line.indexOf('"', end) + 1;
+                tokenType = STRING;
+            }
+            else if (line.startsWith("//", start)) {
+                end = line.length();
+                tokenType = COMMENT;
+            }
+            else if (line.startsWith("/*", start)) {
+                end = line.indexOf("*/", start) + 2;
+                tokenType = COMMENT;
+            }
+            else {
+                tokenType = OPERATION;
+            }
+            _tokens.add(new Object[]{tokenType, Integer.valueOf(offset + start), Integer.valueOf(offset + end)});
+            start = end;
+        }
+        // the line break
+        _tokens.add(new Object[]{WHITE_SPACE, Integer.valueOf(offset + line.length()), Integer.valueOf(offset + line.length() + 1)});
+    }
+
+    private ExportRequest createRequest(boolean useCssClasses) {
+        TokenSource tokens = new TokenSource() {
+            private int _index;
+
+            public IElementType getTokenType() {
+                return _index < _tokens.size() ? (IElementType) ((Object[]) _tokens.get(_index))[0] : null;
+            }
+
+            public int getTokenStart() {
+                return ((Integer) ((Object[]) _tokens.get(_index))[1]).intValue();
+            }
+
+            public int getTokenEnd() {
+                return ((Integer) ((Object[]) _tokens.get(_index))[2]).intValue();
+            }
+
+            public void advance() {
+                ++_index;
+            }
+        };
+        return new ExportRequest(_text, tokens, _tokenCodeStyles, _highlights, _defaultCodeStyle, _lineNoCodeStyle, useCssClasses);
+    }
+
+    /**
+     * @param sink the output if it is a ByteSink, null otherwise
+     */
+    private void run(String name, ExportRequest request, Appendable out, ByteSink sink) throws IOException {
+        for (int i = 0; i < WARM_UP_RENDER_COUNT; i++) {
+            render(request, out, sink);
+        }
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        long time = System.nanoTime();
+        for (int i = 0; i < RENDER_COUNT; i++) {
+            render(request, out, sink);
+        }
+        time = System.nanoTime() - time;
+        allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBytes;
+
+        long tokenCount = (long) RENDER_COUNT * _tokens.size();
+        System.out.println(name + ": " + _tokens.size() + " tokens and " + _highlights.size() + " highlights per render, "
+                           + (allocatedBytes / RENDER_COUNT) + " bytes per render, " + ((double) allocatedBytes / tokenCount)
+                           + " bytes per token, " + ((double) time / tokenCount) + " ns per token");
+    }
+
+    private void render(ExportRequest request, Appendable out, ByteSink sink) throws IOException {
+        if (sink != null) {
+            sink.clear();
+        }
+        else {
+            ((StringBuilder) out).setLength(0);
+        }
+        CopyAsHtmlAction.writeHtml(request, out, null);
+    }
+}